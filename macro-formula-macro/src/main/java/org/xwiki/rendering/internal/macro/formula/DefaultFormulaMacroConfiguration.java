@@ -71,6 +71,64 @@ public class DefaultFormulaMacroConfiguration implements FormulaMacroConfigurati
      */
     private static final String DEFAULT_FONT_SIZE = FormulaRenderer.FontSize.DEFAULT.toString();
 
+    /**
+     * Default value for the parallel rendering of the formulae of a document.
+     *
+     * @see #isParallelRendering()
+     */
+    private static final boolean DEFAULT_PARALLEL_RENDERING = false;
+
+    /**
+     * Default value for the rendering of the formulae when their image is first requested.
+     *
+     * @see #isLazyRendering()
+     */
+    private static final boolean DEFAULT_LAZY_RENDERING = false;
+
+    /**
+     * Default value for the number of seconds a rendering failure is remembered (10 minutes).
+     *
+     * @see #getFailureCacheLifespan()
+     */
+    private static final int DEFAULT_FAILURE_CACHE_LIFESPAN = 600;
+
+    /**
+     * Default value for the number of consecutive failures after which a renderer is not used anymore.
+     *
+     * @see #getCircuitBreakerThreshold()
+     */
+    private static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+
+    /**
+     * Default value for the number of seconds before trying a failing renderer again.
+     *
+     * @see #getCircuitBreakerDelay()
+     */
+    private static final int DEFAULT_CIRCUIT_BREAKER_DELAY = 60;
+
+    /**
+     * Default value for the number of milliseconds to wait for the configured renderer, disabled by default since the
+     * image of the safe renderer may be displayed.
+     *
+     * @see #getHedgingDelay()
+     */
+    private static final long DEFAULT_HEDGING_DELAY = 0;
+
+    /**
+     * Default value for the maximum size of the images embedded in the page (none, since the embedded images are not
+     * cached by the browser separately from the page).
+     *
+     * @see #getDataURIMaxSize()
+     */
+    private static final int DEFAULT_DATA_URI_MAX_SIZE = 0;
+
+    /**
+     * Default value for embedding the SVG images in the page.
+     *
+     * @see #isInlineSVG()
+     */
+    private static final boolean DEFAULT_INLINE_SVG = false;
+
     /**
      * Defines from where to read the rendering configuration data.
      */
@@ -101,4 +159,52 @@ public class DefaultFormulaMacroConfiguration implements FormulaMacroConfigurati
         return FormulaRenderer.FontSize.valueOf(this.configuration.getProperty(PREFIX + "defaultFontSize",
             DEFAULT_FONT_SIZE));
     }
+
+    @Override
+    public boolean isParallelRendering()
+    {
+        return this.configuration.getProperty(PREFIX + "parallelRendering", DEFAULT_PARALLEL_RENDERING);
+    }
+
+    @Override
+    public boolean isLazyRendering()
+    {
+        return this.configuration.getProperty(PREFIX + "lazyRendering", DEFAULT_LAZY_RENDERING);
+    }
+
+    @Override
+    public int getFailureCacheLifespan()
+    {
+        return this.configuration.getProperty(PREFIX + "failureCacheLifespan", DEFAULT_FAILURE_CACHE_LIFESPAN);
+    }
+
+    @Override
+    public int getCircuitBreakerThreshold()
+    {
+        return this.configuration.getProperty(PREFIX + "circuitBreaker.threshold", DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+    }
+
+    @Override
+    public int getCircuitBreakerDelay()
+    {
+        return this.configuration.getProperty(PREFIX + "circuitBreaker.delay", DEFAULT_CIRCUIT_BREAKER_DELAY);
+    }
+
+    @Override
+    public long getHedgingDelay()
+    {
+        return this.configuration.getProperty(PREFIX + "hedgingDelay", DEFAULT_HEDGING_DELAY);
+    }
+
+    @Override
+    public int getDataURIMaxSize()
+    {
+        return this.configuration.getProperty(PREFIX + "dataURIMaxSize", DEFAULT_DATA_URI_MAX_SIZE);
+    }
+
+    @Override
+    public boolean isInlineSVG()
+    {
+        return this.configuration.getProperty(PREFIX + "inlineSVG", DEFAULT_INLINE_SVG);
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.rendering.macro.formula.FormulaMacroConfiguration;
+
+/**
+ * Remembers the invalid formulae, so that they are not rendered again each time they are displayed.
+ * The failures are recorded by renderer and image identifier, which changes with the formula.
+ *
+ * @version $Id$
+ * @since 14.9
+ * @see FormulaMacroConfiguration#getFailureCacheLifespan()
+ */
+@Component(roles = FormulaFailureCache.class)
+@Singleton
+public class FormulaFailureCache implements Initializable, Disposable
+{
+    /** The identifier of the cache configuration. */
+    private static final String CACHE_ID = "formula.failures";
+
+    /** The maximum number of failures remembered. */
+    private static final int MAX_ENTRIES = 1000;
+
+    @Inject
+    private FormulaMacroConfiguration configuration;
+
+    /** Lazily loaded since it's only needed when the failures are remembered. */
+    @Inject
+    private Provider<CacheManager> cacheManagerProvider;
+
+    /** The error messages of the failed renderings, {@code null} if the failures are not remembered. */
+    private Cache<String> cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int lifespan = this.configuration.getFailureCacheLifespan();
+        if (lifespan <= 0) {
+            return;
+        }
+
+        LRUCacheConfiguration cacheConfiguration = new LRUCacheConfiguration(CACHE_ID, MAX_ENTRIES);
+        cacheConfiguration.getLRUEvictionConfiguration().setLifespan(lifespan);
+        try {
+            this.cache = this.cacheManagerProvider.get().createNewCache(cacheConfiguration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the formula failure cache", e);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.cache != null) {
+            this.cache.dispose();
+        }
+    }
+
+    /**
+     * @return {@code true} if the rendering failures are remembered
+     */
+    public boolean isEnabled()
+    {
+        return this.cache != null;
+    }
+
+    /**
+     * @param rendererHint the hint of the renderer that failed
+     * @param imageId the identifier of the image of the formula
+     * @return the error message of the previous failure, or {@code null} if the formula didn't fail recently
+     */
+    public String getFailure(String rendererHint, String imageId)
+    {
+        return this.cache != null && imageId != null ? this.cache.get(getKey(rendererHint, imageId)) : null;
+    }
+
+    /**
+     * Records a rendering failure.
+     *
+     * @param rendererHint the hint of the renderer that failed
+     * @param imageId the identifier of the image of the formula, nothing is recorded if {@code null}
+     * @param message the error message to report for the next renderings of the formula
+     */
+    public void addFailure(String rendererHint, String imageId, String message)
+    {
+        if (this.cache != null && imageId != null) {
+            this.cache.set(getKey(rendererHint, imageId), message);
+        }
+    }
+
+    private String getKey(String rendererHint, String imageId)
+    {
+        return String.format("%s/%s", rendererHint, imageId);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.BlockFilter;
+import org.xwiki.rendering.block.RawBlock;
+import org.xwiki.rendering.syntax.Syntax;
+
+/**
+ * Hidden block defining the glyphs referenced by the SVG images of the formulae embedded in a document. A single block
+ * is added to each transformed document, before the first embedded formula, and the glyphs used by the next formulae
+ * are added to it as they are embedded, so that the definitions are always output along with the formulae.
+ *
+ * @version $Id$
+ * @since 14.9
+ * @see FormulaSVGInliner
+ */
+public class FormulaGlyphsBlock extends RawBlock
+{
+    /** The start of the hidden SVG image holding the definitions. */
+    private static final String START = "<svg xmlns=\"http://www.w3.org/2000/svg\" "
+        + "xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"0\" height=\"0\" style=\"position:absolute\" "
+        + "aria-hidden=\"true\"><defs>";
+
+    /** The end of the hidden SVG image holding the definitions. */
+    private static final String END = "</defs></svg>";
+
+    /** The definitions of the glyphs, indexed by identifier. */
+    private Map<String, String> glyphs = new LinkedHashMap<>();
+
+    /**
+     * Creates an empty block of definitions.
+     */
+    public FormulaGlyphsBlock()
+    {
+        super("", Syntax.HTML_5_0);
+    }
+
+    /**
+     * @return the definitions of the glyphs, indexed by identifier, to which the glyphs of the embedded formulae are
+     *         added
+     */
+    public Map<String, String> getGlyphs()
+    {
+        return this.glyphs;
+    }
+
+    @Override
+    public String getRawContent()
+    {
+        if (this.glyphs.isEmpty()) {
+            return "";
+        }
+        StringBuilder content = new StringBuilder(START);
+        for (String glyph : this.glyphs.values()) {
+            content.append(glyph);
+        }
+        return content.append(END).toString();
+    }
+
+    @Override
+    public Block clone(BlockFilter blockFilter)
+    {
+        FormulaGlyphsBlock clone = (FormulaGlyphsBlock) super.clone(blockFilter);
+        clone.glyphs = new LinkedHashMap<>(this.glyphs);
+        return clone;
+    }
+}
@@ -19,26 +19,52 @@
  */
 package org.xwiki.rendering.internal.macro.formula;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Base64;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.formula.FormulaRenderExecutor;
+import org.xwiki.formula.FormulaRenderTimeoutException;
 import org.xwiki.formula.FormulaRenderer;
 import org.xwiki.formula.FormulaRenderer.FontSize;
 import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.formula.FormulaRequest;
+import org.xwiki.formula.ImageData;
+import org.xwiki.formula.ImageStorage;
 import org.xwiki.formula.internal.TemporaryResourceReferenceProvider;
+import org.xwiki.properties.PropertyException;
 import org.xwiki.rendering.block.Block;
 import org.xwiki.rendering.block.ImageBlock;
+import org.xwiki.rendering.block.MacroBlock;
 import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.RawBlock;
 import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.ClassBlockMatcher;
+import org.xwiki.rendering.block.match.MacroBlockMatcher;
 import org.xwiki.rendering.listener.reference.ResourceReference;
 import org.xwiki.rendering.listener.reference.ResourceType;
 import org.xwiki.rendering.macro.AbstractMacro;
@@ -46,13 +72,16 @@ import org.xwiki.rendering.macro.MacroExecutionException;
 import org.xwiki.rendering.macro.descriptor.DefaultContentDescriptor;
 import org.xwiki.rendering.macro.formula.FormulaMacroConfiguration;
 import org.xwiki.rendering.macro.formula.FormulaMacroParameters;
+import org.xwiki.rendering.syntax.Syntax;
 import org.xwiki.rendering.transformation.MacroTransformationContext;
 import org.xwiki.resource.ResourceReferenceSerializer;
+import org.xwiki.resource.SerializeResourceReferenceException;
+import org.xwiki.resource.UnsupportedResourceReferenceException;
 import org.xwiki.resource.temporary.TemporaryResourceReference;
 import org.xwiki.url.ExtendedURL;
 
 /**
- * Displays a formula, in LaTeX syntax, as an image.
+ * Displays a formula, in LaTeX syntax, as an image or as MathML.
  * 
  * @version $Id$
  * @since 2.0M3
@@ -74,6 +103,15 @@ public class FormulaMacro extends AbstractMacro<FormulaMacroParameters>
     /** The description of the macro content. */
     private static final String CONTENT_DESCRIPTION = "The mathematical formula, in LaTeX syntax";
 
+    /** The identifier of the macro. */
+    private static final String MACRO_ID = "formula";
+
+    /** The suffix of the identifiers of the images of the safe renderer displayed by hedged renderings. */
+    private static final String HEDGED_IMAGE_SUFFIX = "-safe";
+
+    /** The number of milliseconds to wait for the configured renderer when the safe renderer failed. */
+    private static final long HEDGING_TIMEOUT = 120000;
+
     @Inject
     private Logger logger;
 
@@ -91,6 +129,41 @@ public class FormulaMacro extends AbstractMacro<FormulaMacroParameters>
     @Inject
     private TemporaryResourceReferenceProvider resourceReferenceProvider;
 
+    /** Used to check if the image of a formula rendered lazily is already available. */
+    @Inject
+    private ImageStorage storage;
+
+    /** Lazily loaded since it's only needed in lazy rendering mode. */
+    @Inject
+    private Provider<FormulaRequestStore> requestStoreProvider;
+
+    /** Used to not wait for the renderers that keep failing. */
+    @Inject
+    private FormulaRendererCircuitBreaker circuitBreaker;
+
+    /** Used to not render again the formulae that failed recently. */
+    @Inject
+    private FormulaFailureCache failureCache;
+
+    /** Runs the batch of the formulae rendered in parallel, and the safe renderer when hedging. */
+    @Inject
+    private FormulaRenderExecutor renderExecutor;
+
+    /** Used to embed the SVG images in the page. */
+    @Inject
+    private FormulaSVGInliner svgInliner;
+
+    /** Used to embed the MathML in the page. */
+    @Inject
+    private FormulaMathMLFilter mathMLFilter;
+
+    /**
+     * The macro transformations for which the formulae of the transformed document have already been sent to be
+     * rendered in parallel. The same transformation context is used for all the macros of a document.
+     */
+    private final Set<MacroTransformationContext> parallelRenderings =
+        Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<>()));
+
     /**
      * Create and initialize the descriptor of the macro.
      */
@@ -109,23 +182,44 @@ public class FormulaMacro extends AbstractMacro<FormulaMacroParameters>
         }
 
         String rendererHint = this.configuration.getRenderer();
-        FontSize size = (parameters.getFontSize() != null) ? parameters.getFontSize()
-            : this.configuration.getDefaultFontSize();
-        Type type = (parameters.getImageType() != null) ? parameters.getImageType()
-            : this.configuration.getDefaultType();
-        Block result;
+        FontSize size = getFontSize(parameters);
+        Type type = getImageType(parameters);
+        // Don't wait for a renderer that keeps failing
+        boolean useRenderer = this.circuitBreaker.allowRequest(rendererHint);
+        if (useRenderer && this.configuration.isParallelRendering() && !this.configuration.isLazyRendering()) {
+            renderInParallel(context, rendererHint);
+        }
+        Block result = null;
+        boolean rendered = false;
         try {
-            result = render(content, context.isInline(), size, type, rendererHint);
+            if (useRenderer) {
+                result = render(content, size, type, rendererHint, context);
+                rendered = true;
+            } else {
+                this.logger.debug("The [{}] renderer keeps failing. Using the safe renderer.", rendererHint);
+            }
         } catch (MacroExecutionException ex) {
-            this.logger.debug("Failed to render content with the [{}] renderer. Falling back to the safe renderer.",
-                rendererHint, ex);
-            try {
-                result = render(content, context.isInline(), size, type, this.configuration.getSafeRenderer());
-            } catch (IllegalArgumentException ex2) {
-                throw new MacroExecutionException(WRONG_CONTENT_ERROR);
+            if (ex.getCause() instanceof FormulaRenderTimeoutException) {
+                this.logger.warn("The [{}] renderer timed out. Falling back to the safe renderer. Root cause: [{}]",
+                    rendererHint, ExceptionUtils.getRootCauseMessage(ex));
+            } else {
+                this.logger.debug(
+                    "Failed to render content with the [{}] renderer. Falling back to the safe renderer.",
+                    rendererHint, ex);
+            }
+            // Invalid formulae and failures remembered from previous renderings don't say anything about the renderer
+            if (ex.getCause() != null && !(ex.getCause() instanceof IllegalArgumentException)) {
+                this.circuitBreaker.recordFailure(rendererHint);
             }
         } catch (IllegalArgumentException ex) {
-            throw new MacroExecutionException(WRONG_CONTENT_ERROR);
+            throw new MacroExecutionException(WRONG_CONTENT_ERROR, ex);
+        }
+        if (!rendered) {
+            try {
+                result = render(content, size, type, this.configuration.getSafeRenderer(), context);
+            } catch (IllegalArgumentException ex) {
+                throw new MacroExecutionException(WRONG_CONTENT_ERROR, ex);
+            }
         }
 
         // If no image was generated, just return the original text
@@ -139,40 +233,411 @@ public class FormulaMacro extends AbstractMacro<FormulaMacroParameters>
         return Collections.singletonList(result);
     }
 
+    /**
+     * Starts rendering in the background, as a single batch, all the other formulae of the transformed document, the
+     * first time a formula macro of the document is executed. The macros still produce their results in document
+     * order, waiting for the background rendering of their formula when it's not finished yet.
+     *
+     * @param context the macro transformation context
+     * @param rendererHint the hint of the renderer to use
+     */
+    private void renderInParallel(MacroTransformationContext context, String rendererHint)
+    {
+        XDOM xdom = context.getXDOM();
+        if (xdom == null || !this.parallelRenderings.add(context)) {
+            return;
+        }
+
+        FormulaRenderer renderer;
+        try {
+            renderer = this.manager.getInstance(FormulaRenderer.class, rendererHint);
+        } catch (ComponentLookupException e) {
+            // The macro will fall back on the safe renderer when executed
+            return;
+        }
+
+        Set<FormulaRequest> requests = new LinkedHashSet<>();
+        for (MacroBlock macroBlock : xdom.<MacroBlock>getBlocks(new MacroBlockMatcher(MACRO_ID),
+            Block.Axes.DESCENDANT)) {
+            if (macroBlock != context.getCurrentMacroBlock() && StringUtils.isNotEmpty(macroBlock.getContent())) {
+                FormulaMacroParameters parameters = new FormulaMacroParameters();
+                try {
+                    this.beanManager.populate(parameters, macroBlock.getParameters());
+                } catch (PropertyException e) {
+                    // The macro will report the error when executed
+                    continue;
+                }
+                FormulaRequest request = new FormulaRequest(macroBlock.getContent(), macroBlock.isInline(),
+                    getFontSize(parameters), getImageType(parameters));
+                if (needsRendering(renderer, rendererHint, request)) {
+                    requests.add(request);
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        // The formulae are rendered as a batch, sharing the fixed costs of the renderer. Failures are handled when the
+        // macro of the formula is executed.
+        List<FormulaRequest> batch = new ArrayList<>(requests);
+        this.renderExecutor.submit(() -> renderer.processAll(batch));
+    }
+
+    /**
+     * @param renderer the renderer to use
+     * @param rendererHint the hint of the renderer
+     * @param request a formula of the transformed document
+     * @return {@code true} if the formula should be rendered in the background, {@code false} if its image is already
+     *         available, if it failed recently, or if it's rendered when the macro is executed
+     */
+    private boolean needsRendering(FormulaRenderer renderer, String rendererHint, FormulaRequest request)
+    {
+        // The MathML is not stored, so it's rendered when the macro is executed
+        if (Type.MATHML.equals(request.getType())) {
+            return false;
+        }
+        String imageId =
+            renderer.getImageId(request.getFormula(), request.isInline(), request.getSize(), request.getType());
+        return imageId == null
+            || (this.failureCache.getFailure(rendererHint, imageId) == null && !this.storage.exists(imageId));
+    }
+
+    private FontSize getFontSize(FormulaMacroParameters parameters)
+    {
+        return (parameters.getFontSize() != null) ? parameters.getFontSize()
+            : this.configuration.getDefaultFontSize();
+    }
+
+    private Type getImageType(FormulaMacroParameters parameters)
+    {
+        return (parameters.getImageType() != null) ? parameters.getImageType()
+            : this.configuration.getDefaultType();
+    }
+
     /**
      * Renders the formula using the specified renderer.
      * 
      * @param formula the formula text
-     * @param inline is the formula supposed to be used inline or as a block-level element
      * @param fontSize the specified font size
      * @param imageType the specified resulting image type
      * @param rendererHint the hint for the renderer to use
-     * @return the resulting block holding the generated image, or {@code null} in case of an error.
+     * @param context the macro transformation context
+     * @return the resulting block holding the generated image or MathML, or {@code null} in case of an error.
      * @throws MacroExecutionException if no renderer exists for the passed hint or if that rendered failed to render
      *         the formula
      * @throws IllegalArgumentException if the formula is not valid, according to the LaTeX syntax
      */
-    private Block render(String formula, boolean inline, FontSize fontSize, Type imageType, String rendererHint)
-        throws MacroExecutionException, IllegalArgumentException
+    private Block render(String formula, FontSize fontSize, Type imageType, String rendererHint,
+        MacroTransformationContext context) throws MacroExecutionException, IllegalArgumentException
     {
+        boolean inline = context.isInline();
+        String imageId = null;
         try {
             FormulaRenderer renderer = this.manager.getInstance(FormulaRenderer.class, rendererHint);
-            // Calling process() will generate the image and save it in a temporary location.
-            String imageName = renderer.process(formula, inline, fontSize, imageType);
-            // Compute the URL pointing to the generated image
-            TemporaryResourceReference temporaryResourceReference =
-                this.resourceReferenceProvider.getImageReference(imageName);
-            ExtendedURL extendedURL = this.resourceReferenceSerializer.serialize(temporaryResourceReference);
-            ResourceReference imageReference = new ResourceReference(extendedURL.serialize(), ResourceType.URL);
-            ImageBlock result = new ImageBlock(imageReference, false);
+            if (this.failureCache.isEnabled()) {
+                // Report the previous failure right away instead of rendering the formula again
+                imageId = renderer.getImageId(formula, inline, fontSize, imageType);
+                String failure = this.failureCache.getFailure(rendererHint, imageId);
+                if (failure != null) {
+                    throw new MacroExecutionException(failure);
+                }
+            }
+            if (Type.MATHML.equals(imageType)) {
+                Block mathML = renderMathML(renderer, new FormulaRequest(formula, inline, fontSize, imageType));
+                this.circuitBreaker.recordSuccess(rendererHint);
+                return mathML;
+            }
+            String imageName = null;
+            if (this.configuration.isLazyRendering()) {
+                imageName = prepareLazyRendering(renderer, rendererHint, formula, inline, fontSize, imageType);
+            }
+            if (imageName == null && this.configuration.getHedgingDelay() > 0
+                && !rendererHint.equals(this.configuration.getSafeRenderer())) {
+                imageName = renderHedged(renderer, new FormulaRequest(formula, inline, fontSize, imageType));
+                // The image of the safe renderer doesn't tell whether the configured renderer works
+                if (imageName != null && !imageName.endsWith(HEDGED_IMAGE_SUFFIX)) {
+                    this.circuitBreaker.recordSuccess(rendererHint);
+                }
+            }
+            if (imageName == null) {
+                // Calling process() will generate the image and save it in a temporary location.
+                imageName = renderer.process(formula, inline, fontSize, imageType);
+                this.circuitBreaker.recordSuccess(rendererHint);
+            }
+            if (Type.SVG.equals(imageType) && this.configuration.isInlineSVG()) {
+                Block svg = inlineSVG(imageName, formula, context);
+                if (svg != null) {
+                    return svg;
+                }
+            }
+            ImageBlock result = new ImageBlock(getImageReference(imageName), false);
             // Set the alternative text for the image to be the original formula
             result.setParameter("alt", formula);
-            result.setParameter("class", inline ? "formula-inline" : "formula-block");
+            result.setParameter("class", getCSSClass(inline));
             return result;
+        } catch (MacroExecutionException e) {
+            throw e;
         } catch (Exception e) {
-            throw new MacroExecutionException(
-                String.format("Failed to render formula [%s] using the [%s] renderer", formula, rendererHint), e);
+            String message =
+                String.format("Failed to render formula [%s] using the [%s] renderer", formula, rendererHint);
+            // Only invalid formulae fail the same way each time, the other failures (timeouts, overloaded or missing
+            // tools) are worth retrying
+            if (e instanceof IllegalArgumentException) {
+                this.failureCache.addFailure(rendererHint, imageId, message);
+            }
+            throw new MacroExecutionException(message, e);
+        }
+    }
+
+    /**
+     * Embeds the SVG image of the formula in the page, keeping only the markup describing the outline of the glyphs,
+     * and sharing its glyphs with the other formulae of the page.
+     *
+     * @param imageId the identifier of the SVG image
+     * @param formula the formula text
+     * @param context the macro transformation context
+     * @return the raw block holding the SVG image, or {@code null} if the image can't be embedded
+     */
+    private Block inlineSVG(String imageId, String formula, MacroTransformationContext context)
+    {
+        // The image is not available yet in lazy rendering mode, and is not an SVG image if the safe renderer was used
+        ImageData image = this.storage.get(imageId);
+        if (image == null || !Type.SVG.equals(image.getType())) {
+            return null;
+        }
+        FormulaGlyphsBlock glyphsBlock = getGlyphsBlock(context);
+        if (glyphsBlock == null) {
+            return null;
+        }
+        try {
+            return new RawBlock(this.svgInliner.inline(image.getData(), glyphsBlock.getGlyphs(), formula,
+                getCSSClass(context.isInline())), Syntax.HTML_5_0);
+        } catch (IOException e) {
+            this.logger.debug("Failed to embed the SVG image [{}], displaying it as an image instead", imageId, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param context the macro transformation context
+     * @return the block defining the glyphs of the document holding the current macro, created before the first
+     *         formula of the document, or {@code null} if the macro is not part of a document
+     */
+    private FormulaGlyphsBlock getGlyphsBlock(MacroTransformationContext context)
+    {
+        // The definitions are added to the document actually holding the macro, so that they are output with it
+        Block macroBlock = context.getCurrentMacroBlock();
+        if (macroBlock == null || macroBlock.getParent() == null) {
+            return null;
+        }
+        Block root = macroBlock.getParent();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        FormulaGlyphsBlock glyphsBlock =
+            root.getFirstBlock(new ClassBlockMatcher(FormulaGlyphsBlock.class), Block.Axes.CHILD);
+        if (glyphsBlock == null) {
+            glyphsBlock = new FormulaGlyphsBlock();
+            root.insertChildBefore(glyphsBlock, root.getChildren().get(0));
+        }
+        return glyphsBlock;
+    }
+
+    private String getCSSClass(boolean inline)
+    {
+        return inline ? "formula-inline" : "formula-block";
+    }
+
+    /**
+     * @param imageId the identifier of the image to display
+     * @return a data URI holding the image if it's small enough, the URL pointing to the image otherwise
+     * @throws SerializeResourceReferenceException if the URL of the image can't be computed
+     * @throws UnsupportedResourceReferenceException if the URL of the image can't be computed
+     */
+    private ResourceReference getImageReference(String imageId)
+        throws SerializeResourceReferenceException, UnsupportedResourceReferenceException
+    {
+        int dataURIMaxSize = this.configuration.getDataURIMaxSize();
+        if (dataURIMaxSize > 0) {
+            // The image was just rendered or checked, so it's usually in the memory cache of the storage
+            ImageData image = this.storage.get(imageId);
+            if (image != null && image.getData() != null && image.getData().length <= dataURIMaxSize) {
+                return new ResourceReference(String.format("%s;base64,%s", image.getMimeType(),
+                    Base64.getEncoder().encodeToString(image.getData())), ResourceType.DATA);
+            }
+        }
+
+        // Compute the URL pointing to the generated image
+        TemporaryResourceReference temporaryResourceReference =
+            this.resourceReferenceProvider.getImageReference(imageId);
+        ExtendedURL extendedURL = this.resourceReferenceSerializer.serialize(temporaryResourceReference);
+        return new ResourceReference(extendedURL.serialize(), ResourceType.URL);
+    }
+
+    /**
+     * Renders the formula as MathML, embedded in the page and displayed directly by the browser, so that no image has
+     * to be stored and requested.
+     *
+     * @param renderer the renderer to use
+     * @param request the formula to render
+     * @return the raw block holding the MathML of the formula
+     * @throws IllegalArgumentException if the formula is not valid or the renderer doesn't produce MathML
+     * @throws IOException if the formula can't be rendered or if the MathML can't be parsed
+     */
+    private Block renderMathML(FormulaRenderer renderer, FormulaRequest request)
+        throws IllegalArgumentException, IOException
+    {
+        ImageData mathML = renderer.renderImage(request);
+        if (!Type.MATHML.equals(mathML.getType())) {
+            throw new IOException(String.format("The renderer produced [%s] instead of MathML", mathML.getMimeType()));
+        }
+        // The renderers copy parts of the formula to the MathML
+        return new RawBlock(this.mathMLFilter.filter(mathML.getData()), Syntax.HTML_5_0);
+    }
+
+    /**
+     * Renders a formula with the configured renderer, but also starts the safe renderer if the configured renderer
+     * doesn't render it quickly enough, and uses the first image available, the image of the configured renderer being
+     * preferred when both are. The image of the configured renderer is still stored when ready.
+     *
+     * @param renderer the configured renderer
+     * @param request the formula to render
+     * @return the identifier of the image to display, or {@code null} if the renderer can't compute the identifier of
+     *         the image without rendering the formula
+     * @throws IllegalArgumentException if the formula is not valid
+     * @throws IOException if the formula can't be rendered
+     * @throws ComponentLookupException if the safe renderer is missing
+     */
+    private String renderHedged(FormulaRenderer renderer, FormulaRequest request)
+        throws IllegalArgumentException, IOException, ComponentLookupException
+    {
+        String imageId =
+            renderer.getImageId(request.getFormula(), request.isInline(), request.getSize(), request.getType());
+        if (imageId == null) {
+            return null;
+        }
+
+        CompletableFuture<String> rendering =
+            renderer.processAsync(request.getFormula(), request.isInline(), request.getSize(), request.getType());
+        if (waitForRendering(rendering, this.configuration.getHedgingDelay()) != null) {
+            return imageId;
+        }
+
+        FormulaRenderer safeRenderer =
+            this.manager.getInstance(FormulaRenderer.class, this.configuration.getSafeRenderer());
+        CompletableFuture<ImageData> safeRendering =
+            this.renderExecutor.submit(() -> safeRenderer.renderImage(request));
+        waitForAny(rendering, safeRendering, request);
+        if (rendering.isDone()) {
+            return waitForRendering(rendering, 0);
+        }
+
+        ImageData safeImage = getSafeImage(safeRendering, request);
+        if (safeImage == null) {
+            // Nothing else to display than the image of the configured renderer
+            if (waitForRendering(rendering, HEDGING_TIMEOUT) != null) {
+                return imageId;
+            }
+            throw new FormulaRenderTimeoutException(String.format("Timed out while rendering [%s]", request));
+        }
+
+        // The image of the safe renderer is stored under its own identifier, so that it doesn't replace the image of
+        // the configured renderer, which is displayed next time
+        String safeImageId = imageId + HEDGED_IMAGE_SUFFIX;
+        this.storage.put(safeImageId, safeImage);
+        return safeImageId;
+    }
+
+    /**
+     * Waits until one of the renderings is finished, whether it succeeded or not.
+     *
+     * @param rendering the rendering of the configured renderer
+     * @param safeRendering the rendering of the safe renderer
+     * @param request the rendered formula
+     * @throws IOException if none of the renderings finished in time
+     */
+    private void waitForAny(CompletableFuture<String> rendering, CompletableFuture<ImageData> safeRendering,
+        FormulaRequest request) throws IOException
+    {
+        try {
+            CompletableFuture.anyOf(rendering, safeRendering).get(HEDGING_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // The first rendering to finish failed, which is handled by the caller
+        } catch (TimeoutException e) {
+            throw new FormulaRenderTimeoutException(String.format("Timed out while rendering [%s]", request), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rendering of a formula");
+        }
+    }
+
+    /**
+     * @param safeRendering the rendering of the safe renderer, finished
+     * @param request the rendered formula
+     * @return the image of the safe renderer, or {@code null} if the safe renderer failed or is not finished
+     */
+    private ImageData getSafeImage(CompletableFuture<ImageData> safeRendering, FormulaRequest request)
+    {
+        try {
+            return safeRendering.getNow(null);
+        } catch (CompletionException | CancellationException e) {
+            this.logger.debug("Failed to render [{}] with the safe renderer, waiting for the configured renderer",
+                request, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param rendering a rendering in progress
+     * @param timeout the number of milliseconds to wait
+     * @return the identifier of the rendered image, or {@code null} if the rendering is not finished
+     * @throws IllegalArgumentException if the formula is not valid
+     * @throws IOException if the rendering failed
+     */
+    private String waitForRendering(CompletableFuture<String> rendering, long timeout)
+        throws IllegalArgumentException, IOException
+    {
+        try {
+            return timeout > 0 ? rendering.get(timeout, TimeUnit.MILLISECONDS) : rendering.getNow(null);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rendering of a formula");
+        } catch (ExecutionException | CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to render the formula", cause);
+        }
+    }
+
+    /**
+     * Stores the formula so that it's rendered when its image is first requested, unless the image already exists.
+     *
+     * @param renderer the renderer to use
+     * @param rendererHint the hint of the renderer to use
+     * @param formula the formula text
+     * @param inline is the formula supposed to be used inline or as a block-level element
+     * @param fontSize the specified font size
+     * @param imageType the specified resulting image type
+     * @return the identifier of the image, or {@code null} if the renderer can't compute it without rendering the
+     *         formula
+     * @throws IOException if the formula can't be stored
+     */
+    private String prepareLazyRendering(FormulaRenderer renderer, String rendererHint, String formula, boolean inline,
+        FontSize fontSize, Type imageType) throws IOException
+    {
+        String imageId = renderer.getImageId(formula, inline, fontSize, imageType);
+        if (imageId != null && !this.storage.exists(imageId)) {
+            this.requestStoreProvider.get().save(imageId, rendererHint,
+                new FormulaRequest(formula, inline, fontSize, imageType));
         }
+        return imageId;
     }
 
     @Override
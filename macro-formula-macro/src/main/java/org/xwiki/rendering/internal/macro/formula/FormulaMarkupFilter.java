@@ -0,0 +1,215 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Filters the markup produced by the renderers before it's embedded in the page, keeping only the whitelisted
+ * elements and attributes. The renderers copy parts of the formula to their output (e.g. the raw specials of dvisvgm),
+ * so this markup can't be trusted more than the formula itself.
+ * <p>
+ * The elements that are not whitelisted are removed along with their content, as well as the comments, the processing
+ * instructions and, unless it's displayed, the text. The only links kept are the {@code href} attributes referencing
+ * an element of the page, and the only URLs kept in the other attributes are those referencing an element of the page
+ * too.
+ * </p>
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+public class FormulaMarkupFilter
+{
+    /** The namespace of the links. */
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+
+    /** The name of the link attributes. */
+    private static final String HREF = "href";
+
+    /** Matches the references to an element of the page. */
+    private static final Pattern LOCAL_REFERENCE = Pattern.compile("#[\\w.:-]+");
+
+    /** Matches the URLs referencing an element of the page. */
+    private static final Pattern LOCAL_URL = Pattern.compile("url\\(\\s*#[\\w.:-]+\\s*\\)");
+
+    /** Matches the values that could load a resource or hide one behind an escape sequence. */
+    private static final Pattern UNSAFE_VALUE = Pattern.compile("(?i)url\\s*\\(|\\\\|javascript:|expression\\s*\\(");
+
+    private final String namespace;
+
+    private final Set<String> elements;
+
+    private final Set<String> attributes;
+
+    private final boolean text;
+
+    private final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+
+    private final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    /**
+     * @param namespace the namespace of the allowed elements
+     * @param elements the local names of the allowed elements
+     * @param attributes the local names of the allowed attributes, {@code href} standing for both the plain and the
+     *            XLink attributes
+     * @param text {@code true} if the text content of the elements is kept, {@code false} if it's not displayed
+     */
+    public FormulaMarkupFilter(String namespace, Set<String> elements, Set<String> attributes, boolean text)
+    {
+        this.namespace = namespace;
+        this.elements = elements;
+        this.attributes = attributes;
+        this.text = text;
+
+        this.documentBuilderFactory.setNamespaceAware(true);
+        // The content of the CDATA sections is kept as text and filtered as such
+        this.documentBuilderFactory.setCoalescing(true);
+        this.documentBuilderFactory.setIgnoringComments(true);
+        try {
+            this.documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            // The renderers may reference their DTD, which is not needed
+            this.documentBuilderFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd",
+                false);
+        } catch (ParserConfigurationException e) {
+            // The parser doesn't support these features, don't load the external entities at least
+            this.documentBuilderFactory.setExpandEntityReferences(false);
+        }
+    }
+
+    /**
+     * Parses the markup and removes all it contains that is not whitelisted.
+     *
+     * @param markup the markup produced by a renderer
+     * @return the filtered document
+     * @throws IOException if the markup can't be parsed or if its root element is not allowed
+     */
+    public Document parse(byte[] markup) throws IOException
+    {
+        Document document;
+        try {
+            DocumentBuilder documentBuilder;
+            synchronized (this.documentBuilderFactory) {
+                documentBuilder = this.documentBuilderFactory.newDocumentBuilder();
+            }
+            document = documentBuilder.parse(new ByteArrayInputStream(markup));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Failed to parse the markup of the formula", e);
+        }
+        Element root = document.getDocumentElement();
+        if (!isAllowed(root)) {
+            throw new IOException(String.format("Unexpected root element [%s] in the markup of the formula",
+                root.getTagName()));
+        }
+        filter(root);
+        return document;
+    }
+
+    /**
+     * @param element the element to serialize
+     * @return the markup of the element
+     * @throws IOException if the element can't be serialized
+     */
+    public String serialize(Element element) throws IOException
+    {
+        try {
+            Transformer transformer;
+            synchronized (this.transformerFactory) {
+                transformer = this.transformerFactory.newTransformer();
+            }
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(element), new StreamResult(writer));
+            return writer.toString();
+        } catch (TransformerException e) {
+            throw new IOException("Failed to serialize the markup of the formula", e);
+        }
+    }
+
+    private void filter(Element element)
+    {
+        NamedNodeMap elementAttributes = element.getAttributes();
+        for (int i = elementAttributes.getLength() - 1; i >= 0; i--) {
+            Attr attribute = (Attr) elementAttributes.item(i);
+            if (!isAllowed(attribute)) {
+                element.removeAttributeNode(attribute);
+            }
+        }
+
+        Node child = element.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child instanceof Element && isAllowed((Element) child)) {
+                filter((Element) child);
+            } else if (!this.text || child.getNodeType() != Node.TEXT_NODE) {
+                element.removeChild(child);
+            }
+            child = next;
+        }
+    }
+
+    private boolean isAllowed(Element element)
+    {
+        return this.namespace.equals(element.getNamespaceURI()) && this.elements.contains(element.getLocalName());
+    }
+
+    private boolean isAllowed(Attr attribute)
+    {
+        String attributeNamespace = attribute.getNamespaceURI();
+        String value = attribute.getValue();
+        if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attributeNamespace)) {
+            return this.namespace.equals(value) || XLINK_NAMESPACE.equals(value);
+        }
+
+        String name = attribute.getLocalName();
+        if (attributeNamespace != null && !(XLINK_NAMESPACE.equals(attributeNamespace) && HREF.equals(name))) {
+            return false;
+        }
+        if (!this.attributes.contains(name)) {
+            return false;
+        } else if (HREF.equals(name)) {
+            return LOCAL_REFERENCE.matcher(value).matches();
+        }
+        return !UNSAFE_VALUE.matcher(LOCAL_URL.matcher(value).replaceAll("")).find();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Prepares the MathML of the formulae to be embedded directly in the page, keeping only the presentation elements and
+ * attributes. The links, the actions and the annotations holding other markup are removed.
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+@Component(roles = FormulaMathMLFilter.class)
+@Singleton
+public class FormulaMathMLFilter
+{
+    /** The namespace of the MathML elements. */
+    private static final String MATHML_NAMESPACE = "http://www.w3.org/1998/Math/MathML";
+
+    /** The presentation elements, and the semantic elements holding text annotations. */
+    private static final Set<String> ELEMENTS = new HashSet<>(Arrays.asList("math", "mrow", "mi", "mn", "mo", "ms",
+        "mtext", "mspace", "msub", "msup", "msubsup", "mfrac", "msqrt", "mroot", "mstyle", "merror", "mpadded",
+        "mphantom", "mfenced", "menclose", "munder", "mover", "munderover", "mmultiscripts", "mprescripts", "none",
+        "mtable", "mtr", "mtd", "mlabeledtr", "semantics", "annotation"));
+
+    /** The presentation attributes. */
+    private static final Set<String> ATTRIBUTES = new HashSet<>(Arrays.asList("display", "displaystyle",
+        "scriptlevel", "mathvariant", "mathsize", "mathcolor", "mathbackground", "dir", "form", "fence", "separator",
+        "stretchy", "symmetric", "largeop", "movablelimits", "accent", "accentunder", "lspace", "rspace", "minsize",
+        "maxsize", "linethickness", "bevelled", "numalign", "denomalign", "open", "close", "separators", "notation",
+        "width", "height", "depth", "voffset", "align", "rowalign", "columnalign", "rowspan", "columnspan",
+        "rowlines", "columnlines", "rowspacing", "columnspacing", "frame", "framespacing", "equalrows", "equalcolumns",
+        "side", "encoding"));
+
+    private final FormulaMarkupFilter filter = new FormulaMarkupFilter(MATHML_NAMESPACE, ELEMENTS, ATTRIBUTES, true);
+
+    /**
+     * @param mathML the MathML of a formula
+     * @return the markup to embed in the page
+     * @throws IOException if the MathML can't be parsed
+     */
+    public String filter(byte[] mathML) throws IOException
+    {
+        return this.filter.serialize(this.filter.parse(mathML).getDocumentElement());
+    }
+}
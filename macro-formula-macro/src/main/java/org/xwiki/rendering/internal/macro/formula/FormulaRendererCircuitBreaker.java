@@ -0,0 +1,166 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.rendering.macro.formula.FormulaMacroConfiguration;
+
+/**
+ * Stops using a formula renderer that keeps failing, for instance because the native commands it needs are not
+ * installed, so that the formulae are sent directly to the safe renderer instead of waiting for each one to fail.
+ * <p>
+ * The circuit of a renderer opens after a number of consecutive failures. Once the configured delay has elapsed a
+ * single rendering is let through to probe the renderer: the circuit closes if it succeeds, and opens again otherwise.
+ * </p>
+ *
+ * @version $Id$
+ * @since 14.9
+ * @see FormulaMacroConfiguration#getCircuitBreakerThreshold()
+ */
+@Component(roles = FormulaRendererCircuitBreaker.class)
+@Singleton
+public class FormulaRendererCircuitBreaker
+{
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private FormulaMacroConfiguration configuration;
+
+    /** The state of the renderers that have been used, by hint. */
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    /**
+     * @param rendererHint the hint of a renderer
+     * @return {@code true} if the renderer can be used, {@code false} if the formula should be sent to the safe
+     *         renderer right away
+     */
+    public boolean allowRequest(String rendererHint)
+    {
+        if (this.configuration.getCircuitBreakerThreshold() <= 0) {
+            return true;
+        }
+        Circuit circuit = this.circuits.get(rendererHint);
+        return circuit == null || circuit.allowRequest(getDelay());
+    }
+
+    /**
+     * Records a successful rendering, which closes the circuit of the renderer.
+     *
+     * @param rendererHint the hint of the renderer
+     */
+    public void recordSuccess(String rendererHint)
+    {
+        Circuit circuit = this.circuits.get(rendererHint);
+        if (circuit != null && circuit.recordSuccess()) {
+            this.logger.info("The [{}] formula renderer works again", rendererHint);
+        }
+    }
+
+    /**
+     * Records a rendering failure caused by the renderer itself (and not by an invalid formula), which may open the
+     * circuit of the renderer.
+     *
+     * @param rendererHint the hint of the renderer
+     */
+    public void recordFailure(String rendererHint)
+    {
+        int threshold = this.configuration.getCircuitBreakerThreshold();
+        if (threshold > 0
+            && this.circuits.computeIfAbsent(rendererHint, hint -> new Circuit()).recordFailure(threshold)) {
+            this.logger.warn("The [{}] formula renderer keeps failing, using the safe renderer for [{}] seconds",
+                rendererHint, this.configuration.getCircuitBreakerDelay());
+        }
+    }
+
+    private long getDelay()
+    {
+        return TimeUnit.SECONDS.toNanos(Math.max(0, this.configuration.getCircuitBreakerDelay()));
+    }
+
+    /**
+     * The state of the circuit of a renderer.
+     *
+     * @version $Id$
+     */
+    private static final class Circuit
+    {
+        /** The number of consecutive failures. */
+        private int failures;
+
+        /** Whether the renderer is not used anymore. */
+        private boolean open;
+
+        /** The time of the last failure or of the start of the last probe, as returned by {@link System#nanoTime()}. */
+        private long since;
+
+        /** Whether a rendering is probing the renderer. */
+        private boolean probing;
+
+        synchronized boolean allowRequest(long delay)
+        {
+            if (!this.open) {
+                return true;
+            }
+            // Let a single rendering through once the delay has elapsed, or if the previous probe never reported back
+            if (System.nanoTime() - this.since >= delay) {
+                this.probing = true;
+                this.since = System.nanoTime();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return {@code true} if the circuit was open
+         */
+        synchronized boolean recordSuccess()
+        {
+            boolean wasOpen = this.open;
+            this.failures = 0;
+            this.open = false;
+            this.probing = false;
+            return wasOpen;
+        }
+
+        /**
+         * @return {@code true} if the circuit has just been opened
+         */
+        synchronized boolean recordFailure(int threshold)
+        {
+            this.failures++;
+            this.since = System.nanoTime();
+            boolean wasOpen = this.open;
+            if (this.probing || this.failures >= threshold) {
+                this.open = true;
+                this.probing = false;
+            }
+            return this.open && !wasOpen;
+        }
+    }
+}
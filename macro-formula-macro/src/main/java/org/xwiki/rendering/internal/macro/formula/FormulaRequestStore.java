@@ -0,0 +1,156 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.formula.FormulaRenderer.FontSize;
+import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.formula.FormulaRequest;
+import org.xwiki.formula.internal.TemporaryResourceReferenceProvider;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+
+/**
+ * Stores the formulae that are rendered when their image is first requested, next to the location of their image.
+ *
+ * @version $Id$
+ * @since 14.9
+ * @see org.xwiki.rendering.macro.formula.FormulaMacroConfiguration#isLazyRendering()
+ */
+@Component(roles = FormulaRequestStore.class)
+@Singleton
+public class FormulaRequestStore
+{
+    private static final String RENDERER = "renderer";
+
+    private static final String FORMULA = "formula";
+
+    private static final String INLINE = "inline";
+
+    private static final String SIZE = "size";
+
+    private static final String TYPE = "type";
+
+    @Inject
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @Inject
+    private TemporaryResourceReferenceProvider resourceReferenceProvider;
+
+    /**
+     * Stores a formula to render, unless it's already stored.
+     *
+     * @param imageId the identifier of the image of the formula
+     * @param rendererHint the hint of the renderer to use
+     * @param request the formula to render
+     * @throws IOException if the formula can't be stored
+     */
+    public void save(String imageId, String rendererHint, FormulaRequest request) throws IOException
+    {
+        File file = this.temporaryResourceStore.getTemporaryFile(
+            this.resourceReferenceProvider.getImageRequestReference(imageId));
+        if (file != null && file.exists()) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(RENDERER, rendererHint);
+        properties.setProperty(FORMULA, request.getFormula());
+        properties.setProperty(INLINE, String.valueOf(request.isInline()));
+        properties.setProperty(SIZE, request.getSize().name());
+        properties.setProperty(TYPE, request.getType().name());
+        StringWriter writer = new StringWriter();
+        properties.store(writer, null);
+        this.temporaryResourceStore.createTemporaryFile(this.resourceReferenceProvider.getImageRequestReference(
+            imageId), new ByteArrayInputStream(writer.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param imageId the identifier of the image of the formula
+     * @return the stored formula, or {@code null} if no formula is stored for this image
+     * @throws IOException if the stored formula can't be read
+     */
+    public StoredRequest load(String imageId) throws IOException
+    {
+        File file = this.temporaryResourceStore.getTemporaryFile(
+            this.resourceReferenceProvider.getImageRequestReference(imageId));
+        if (file == null || !file.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        try {
+            return new StoredRequest(properties.getProperty(RENDERER),
+                new FormulaRequest(properties.getProperty(FORMULA),
+                    Boolean.parseBoolean(properties.getProperty(INLINE)),
+                    FontSize.valueOf(properties.getProperty(SIZE)), Type.valueOf(properties.getProperty(TYPE))));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IOException(String.format("Invalid formula stored for image [%s]", imageId), e);
+        }
+    }
+
+    /**
+     * A stored formula, along with the renderer to use.
+     *
+     * @version $Id$
+     */
+    public static final class StoredRequest
+    {
+        private final String rendererHint;
+
+        private final FormulaRequest request;
+
+        StoredRequest(String rendererHint, FormulaRequest request)
+        {
+            this.rendererHint = rendererHint;
+            this.request = request;
+        }
+
+        /**
+         * @return the hint of the renderer to use
+         */
+        public String getRendererHint()
+        {
+            return this.rendererHint;
+        }
+
+        /**
+         * @return the formula to render
+         */
+        public FormulaRequest getRequest()
+        {
+            return this.request;
+        }
+    }
+}
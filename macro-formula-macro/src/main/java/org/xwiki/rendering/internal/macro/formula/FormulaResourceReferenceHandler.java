@@ -0,0 +1,294 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.formula.FormulaRenderer;
+import org.xwiki.formula.FormulaRequest;
+import org.xwiki.formula.ImageData;
+import org.xwiki.formula.ImageStorage;
+import org.xwiki.formula.internal.TemporaryResourceReferenceProvider;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.rendering.internal.macro.formula.FormulaRequestStore.StoredRequest;
+import org.xwiki.rendering.macro.formula.FormulaMacroConfiguration;
+import org.xwiki.resource.AbstractResourceReferenceHandler;
+import org.xwiki.resource.ResourceReference;
+import org.xwiki.resource.ResourceReferenceHandlerChain;
+import org.xwiki.resource.ResourceReferenceHandlerException;
+import org.xwiki.resource.ResourceType;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.web.XWikiResponse;
+
+/**
+ * Renders the formulae stored by the {@link FormulaMacro formula macro} in lazy rendering mode when their image is
+ * first requested, before letting the default temporary resource handler serve the image. The SVG images are served
+ * directly from their gzip compressed copy, when it exists, to the browsers that accept it, and the images whose file
+ * has been removed are served from the memory of the {@link ImageStorage storage} when they are still there.
+ *
+ * @version $Id$
+ * @since 14.9
+ * @see FormulaMacroConfiguration#isLazyRendering()
+ */
+@Component
+@Named("formula")
+@Singleton
+public class FormulaResourceReferenceHandler extends AbstractResourceReferenceHandler<ResourceType>
+{
+    /** Handle the formula images before the default temporary resource handler. */
+    private static final int PRIORITY = 500;
+
+    /** The content coding of the compressed images. */
+    private static final String GZIP = "gzip";
+
+    /** The header controlling how the browsers cache the images. */
+    private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+
+    /**
+     * The image identifiers are computed from the formulae, so the images never change. They are only cached by the
+     * browser since their access depends on the rights of the user on the document displaying them.
+     */
+    private static final String CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> xwikiContextProvider;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
+    @Inject
+    private ComponentManager manager;
+
+    @Inject
+    private FormulaMacroConfiguration configuration;
+
+    @Inject
+    private ImageStorage storage;
+
+    @Inject
+    private FormulaRequestStore requestStore;
+
+    @Inject
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @Inject
+    private TemporaryResourceReferenceProvider resourceReferenceProvider;
+
+    @Inject
+    private FormulaRendererCircuitBreaker circuitBreaker;
+
+    @Inject
+    private FormulaFailureCache failureCache;
+
+    @Override
+    public int getPriority()
+    {
+        return PRIORITY;
+    }
+
+    @Override
+    public List<ResourceType> getSupportedResourceReferences()
+    {
+        return Collections.singletonList(TemporaryResourceReference.TYPE);
+    }
+
+    @Override
+    public void handle(ResourceReference reference, ResourceReferenceHandlerChain chain)
+        throws ResourceReferenceHandlerException
+    {
+        if (reference instanceof TemporaryResourceReference) {
+            TemporaryResourceReference temporaryReference = (TemporaryResourceReference) reference;
+            EntityReference owningReference = temporaryReference.getOwningEntityReference();
+            if (TemporaryResourceReferenceProvider.MODULE_ID.equals(temporaryReference.getModuleId())
+                && owningReference != null && this.authorization.hasAccess(Right.VIEW, owningReference)) {
+                String imageId = String.join("/", temporaryReference.getResourcePath());
+                try {
+                    if (render(imageId, owningReference)) {
+                        return;
+                    }
+                } catch (Exception e) {
+                    // The default handler will report the missing image
+                    this.logger.warn("Failed to render the formula image [{}]: [{}]", imageId, e.getMessage());
+                    this.logger.debug("Full stack trace:", e);
+                }
+            }
+        }
+
+        chain.handleNext(reference);
+    }
+
+    /**
+     * Renders the formula image if it's not available yet, and serves its compressed copy if possible, or the image
+     * kept in memory if its file is missing.
+     *
+     * @param imageId the identifier of the requested image
+     * @param owningReference the entity the image is stored for
+     * @return {@code true} if the image of the safe renderer, the compressed image or the image kept in memory has
+     *         been sent, {@code false} if the image should be served by the default handler
+     */
+    private boolean render(String imageId, EntityReference owningReference)
+        throws XWikiException, IOException, ComponentLookupException
+    {
+        XWikiContext xcontext = this.xwikiContextProvider.get();
+        XWikiDocument currentDocument = xcontext.getDoc();
+        try {
+            // The formula images are stored relatively to the document that displays them, unless they are shared
+            if (owningReference.getType() == EntityType.DOCUMENT) {
+                xcontext.setDoc(
+                    xcontext.getWiki().getDocument(new DocumentReference(owningReference), xcontext));
+            }
+            if (!this.storage.exists(imageId)) {
+                StoredRequest storedRequest = this.requestStore.load(imageId);
+                if (storedRequest != null) {
+                    ImageData safeImage =
+                        render(imageId, storedRequest.getRendererHint(), storedRequest.getRequest());
+                    if (safeImage != null) {
+                        // The image of the configured renderer should be displayed as soon as it's available
+                        return send(safeImage, "no-cache", xcontext);
+                    }
+                }
+            }
+            return sendCompressed(imageId, xcontext) || sendStored(imageId, xcontext);
+        } finally {
+            xcontext.setDoc(currentDocument);
+        }
+    }
+
+    /**
+     * Renders a formula with the renderer chosen when the macro was executed, falling back on the safe renderer. Like
+     * in the macro, the chosen renderer is skipped when it keeps failing or when it failed recently on the formula, and
+     * its failures are reported to the {@link FormulaRendererCircuitBreaker} and the {@link FormulaFailureCache}.
+     *
+     * @param imageId the identifier of the image of the chosen renderer
+     * @param rendererHint the hint of the renderer chosen by the macro
+     * @param request the formula to render
+     * @return {@code null} if the image has been stored by the chosen renderer, the image of the safe renderer
+     *         otherwise
+     */
+    private ImageData render(String imageId, String rendererHint, FormulaRequest request)
+        throws IOException, ComponentLookupException
+    {
+        if (this.circuitBreaker.allowRequest(rendererHint)
+            && this.failureCache.getFailure(rendererHint, imageId) == null) {
+            try {
+                FormulaRenderer renderer = this.manager.getInstance(FormulaRenderer.class, rendererHint);
+                renderer.process(request.getFormula(), request.isInline(), request.getSize(), request.getType());
+                this.circuitBreaker.recordSuccess(rendererHint);
+                return null;
+            } catch (ComponentLookupException | IOException | IllegalArgumentException e) {
+                this.logger.debug(
+                    "Failed to render content with the [{}] renderer. Falling back to the safe renderer.",
+                    rendererHint, e);
+                // Only invalid formulae fail the same way each time, the other failures are caused by the renderer
+                if (e instanceof IllegalArgumentException) {
+                    this.failureCache.addFailure(rendererHint, imageId, String.format(
+                        "Failed to render formula [%s] using the [%s] renderer", request.getFormula(), rendererHint));
+                } else {
+                    this.circuitBreaker.recordFailure(rendererHint);
+                }
+            }
+        }
+
+        // The image of the safe renderer is stored under its own identifier, since the failure may be temporary, and
+        // the image of the chosen renderer is rendered again next time it's requested
+        FormulaRenderer safeRenderer =
+            this.manager.getInstance(FormulaRenderer.class, this.configuration.getSafeRenderer());
+        String safeImageId =
+            safeRenderer.process(request.getFormula(), request.isInline(), request.getSize(), request.getType());
+        return safeRenderer.getImage(safeImageId);
+    }
+
+    /**
+     * Serves the image from the storage when its temporary file is missing, which happens when the temporary files are
+     * cleaned up while the image is still kept in memory by the storage.
+     *
+     * @param imageId the identifier of the requested image
+     * @param xcontext the XWiki context
+     * @return {@code true} if the image has been sent, {@code false} if it should be served by the default handler
+     */
+    private boolean sendStored(String imageId, XWikiContext xcontext) throws IOException
+    {
+        File file =
+            this.temporaryResourceStore.getTemporaryFile(this.resourceReferenceProvider.getImageReference(imageId));
+        return (file == null || !file.exists()) && send(this.storage.get(imageId), CACHE_CONTROL, xcontext);
+    }
+
+    private boolean send(ImageData image, String cacheControl, XWikiContext xcontext) throws IOException
+    {
+        XWikiResponse response = xcontext.getResponse();
+        if (response == null || image == null) {
+            return false;
+        }
+        response.setContentType(image.getMimeType());
+        response.setHeader(CACHE_CONTROL_HEADER, cacheControl);
+        response.setContentLength(image.getData().length);
+        response.getOutputStream().write(image.getData());
+        return true;
+    }
+
+    private boolean sendCompressed(String imageId, XWikiContext xcontext) throws IOException
+    {
+        if (xcontext.getRequest() == null || xcontext.getResponse() == null
+            || !StringUtils.containsIgnoreCase(xcontext.getRequest().getHeader("Accept-Encoding"), GZIP)) {
+            return false;
+        }
+        // Only the SVG images have a compressed copy
+        File file = this.temporaryResourceStore.getTemporaryFile(
+            this.resourceReferenceProvider.getCompressedImageReference(imageId));
+        if (file == null || !file.exists()) {
+            return false;
+        }
+
+        XWikiResponse response = xcontext.getResponse();
+        response.setContentType(FormulaRenderer.Type.SVG.getMimetype());
+        response.setHeader("Content-Encoding", GZIP);
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader(CACHE_CONTROL_HEADER, CACHE_CONTROL);
+        response.setContentLengthLong(file.length());
+        Files.copy(file.toPath(), response.getOutputStream());
+        return true;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Singleton;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Prepares the SVG images of the formulae to be embedded directly in the page. Only the elements and attributes
+ * describing the outline of the glyphs are kept. The glyphs defined by each image are moved out of it and given an
+ * identifier computed from their outline, so that each glyph is defined only once in the page, in a
+ * {@link FormulaGlyphsBlock hidden block of definitions}, and then referenced by all the formulae using it.
+ *
+ * @version $Id$
+ * @since 14.9
+ * @see org.xwiki.rendering.macro.formula.FormulaMacroConfiguration#isInlineSVG()
+ */
+@Component(roles = FormulaSVGInliner.class)
+@Singleton
+public class FormulaSVGInliner
+{
+    /** The namespace of the SVG elements. */
+    private static final String SVG_NAMESPACE = "http://www.w3.org/2000/svg";
+
+    /** The elements produced by the renderers to draw the glyphs. */
+    private static final Set<String> ELEMENTS =
+        new HashSet<>(Arrays.asList("svg", "g", "defs", "path", "use", "symbol", "rect", "line"));
+
+    /** The attributes produced by the renderers to draw the glyphs. */
+    private static final Set<String> ATTRIBUTES = new HashSet<>(Arrays.asList("id", "version", "width", "height",
+        "viewBox", "preserveAspectRatio", "x", "y", "x1", "y1", "x2", "y2", "d", "transform", "href", "fill",
+        "fill-rule", "fill-opacity", "stroke", "stroke-width", "stroke-linecap", "stroke-linejoin",
+        "stroke-miterlimit", "stroke-opacity", "opacity"));
+
+    /** The name of the identifier attribute. */
+    private static final String ID = "id";
+
+    /** The prefix of the identifiers of the glyphs. */
+    private static final String GLYPH_ID_PREFIX = "formula-glyph-";
+
+    /** The radix used to encode the outline hash identifying a glyph. */
+    private static final int GLYPH_HASH_RADIX = 36;
+
+    /** The prefix of the references to the glyphs. */
+    private static final String REFERENCE_PREFIX = "#";
+
+    private final FormulaMarkupFilter filter = new FormulaMarkupFilter(SVG_NAMESPACE, ELEMENTS, ATTRIBUTES, false);
+
+    /**
+     * @param svg the SVG image of a formula
+     * @param glyphs the definitions of the glyphs used by the image, indexed by identifier, to which the glyphs of
+     *            the image are added since the returned markup only references them
+     * @param label the text alternative of the image
+     * @param cssClass the CSS class of the image
+     * @return the markup to embed in the page in place of the image
+     * @throws IOException if the SVG image can't be processed
+     */
+    public String inline(byte[] svg, Map<String, String> glyphs, String label, String cssClass) throws IOException
+    {
+        Element root = this.filter.parse(svg).getDocumentElement();
+
+        // Give the glyphs an identifier that depends only on their outline, so that the same glyph used by several
+        // formulae of the page is defined only once
+        Map<String, String> identifiers = new HashMap<>();
+        List<Element> definitions = getElements(root.getElementsByTagNameNS(SVG_NAMESPACE, "defs"));
+        Set<Element> newGlyphs = new LinkedHashSet<>();
+        for (Element defs : definitions) {
+            for (Node child = defs.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child instanceof Element && ((Element) child).hasAttribute(ID)) {
+                    newGlyphs.add((Element) child);
+                }
+            }
+        }
+        for (Element glyph : newGlyphs) {
+            String identifier = getGlyphIdentifier(glyph);
+            identifiers.put(glyph.getAttribute(ID), identifier);
+            glyph.setAttribute(ID, identifier);
+        }
+
+        // The other identifiers (e.g. the page group of dvisvgm) would be duplicated in the page
+        for (Element element : getElements(root.getElementsByTagName("*"))) {
+            if (!newGlyphs.contains(element)) {
+                element.removeAttribute(ID);
+            }
+        }
+        root.removeAttribute(ID);
+        updateReferences(root, identifiers);
+
+        // Only the references to the glyphs are left in the image
+        for (Element glyph : newGlyphs) {
+            glyphs.putIfAbsent(glyph.getAttribute(ID), this.filter.serialize(glyph));
+        }
+        for (Element defs : definitions) {
+            defs.getParentNode().removeChild(defs);
+        }
+
+        root.setAttribute("class", cssClass);
+        root.setAttribute("role", "img");
+        root.setAttribute("aria-label", label);
+        return this.filter.serialize(root);
+    }
+
+    private String getGlyphIdentifier(Element glyph) throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(glyph.getLocalName().getBytes(StandardCharsets.UTF_8));
+        NamedNodeMap attributes = glyph.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (!ID.equals(attribute.getName())) {
+                digest.update((byte) 0);
+                digest.update(attribute.getName().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(attribute.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        // Glyphs with children (e.g. symbols) also depend on their content
+        if (glyph.hasChildNodes()) {
+            digest.update(this.filter.serialize(glyph).getBytes(StandardCharsets.UTF_8));
+        }
+        // The first 64 bits of the hash are enough to identify the glyphs of a page
+        long hash = ByteBuffer.wrap(digest.digest()).getLong();
+        return GLYPH_ID_PREFIX + Long.toUnsignedString(hash, GLYPH_HASH_RADIX);
+    }
+
+    private void updateReferences(Element element, Map<String, String> identifiers)
+    {
+        List<Element> elements = getElements(element.getElementsByTagName("*"));
+        elements.add(element);
+        for (Element current : elements) {
+            NamedNodeMap attributes = current.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                String value = attribute.getValue();
+                if (value.startsWith(REFERENCE_PREFIX)) {
+                    String identifier = identifiers.get(value.substring(1));
+                    if (identifier != null) {
+                        attribute.setValue(REFERENCE_PREFIX + identifier);
+                    }
+                } else if (value.contains("url(#")) {
+                    for (Map.Entry<String, String> entry : identifiers.entrySet()) {
+                        value = value.replace("url(#" + entry.getKey() + ')', "url(#" + entry.getValue() + ')');
+                    }
+                    attribute.setValue(value);
+                }
+            }
+        }
+    }
+
+    private List<Element> getElements(NodeList nodes)
+    {
+        // Copy the live node list, since the elements are modified
+        List<Element> elements = new ArrayList<>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength(); i++) {
+            elements.add((Element) nodes.item(i));
+        }
+        return elements;
+    }
+}
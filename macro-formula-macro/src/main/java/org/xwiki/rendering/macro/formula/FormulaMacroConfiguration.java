@@ -39,7 +39,7 @@ public interface FormulaMacroConfiguration
      * The hint of the {@link org.xwiki.formula.FormulaRenderer} component implementation to use for rendering math
      * expressions into images.
      * 
-     * @return the configured hint, for example {@code "native"} or {@code "snuggletex"}
+     * @return the configured hint, for example {@code "native"}, {@code "jlatexmath"} or {@code "snuggletex"}
      */
     String getRenderer();
 
@@ -73,4 +73,105 @@ public interface FormulaMacroConfiguration
     {
         return FormulaRenderer.FontSize.DEFAULT;
     }
+
+    /**
+     * Whether all the formulae of a document are rendered in parallel, in the background, when the first formula
+     * macro of the document is executed, instead of being rendered one after the other as the macros are executed.
+     *
+     * @return {@code true} if the formulae of a document should be rendered in parallel
+     * @since 14.9
+     */
+    default boolean isParallelRendering()
+    {
+        return false;
+    }
+
+    /**
+     * Whether the formulae are only rendered when their image is first requested by the browser, instead of when the
+     * macro is executed. This makes the pages display faster when the images are not already available, and avoids
+     * rendering the formulae that are never displayed, but invalid formulae are not reported by the macro anymore.
+     *
+     * @return {@code true} if the formulae should be rendered when their image is first requested
+     * @since 14.9
+     */
+    default boolean isLazyRendering()
+    {
+        return false;
+    }
+
+    /**
+     * The number of seconds during which an invalid formula is not rendered again with the same renderer, the previous
+     * error being reported instead. Since the failures are recorded by image identifier, a formula is rendered again as
+     * soon as it's modified. The other failures, such as timeouts, are not remembered.
+     *
+     * @return the number of seconds a rendering failure is remembered, {@code 0} to never remember the failures
+     * @since 14.9
+     */
+    default int getFailureCacheLifespan()
+    {
+        return 0;
+    }
+
+    /**
+     * The number of consecutive failures (other than invalid formulae) after which a renderer is not used anymore, the
+     * formulae being sent directly to the {@link #getSafeRenderer() safe renderer}.
+     *
+     * @return the number of consecutive failures after which a renderer is not used, {@code 0} to always use it
+     * @since 14.9
+     */
+    default int getCircuitBreakerThreshold()
+    {
+        return 0;
+    }
+
+    /**
+     * The number of seconds after which a renderer that is not used anymore because of its failures is tried again.
+     *
+     * @return the number of seconds before trying a failing renderer again
+     * @since 14.9
+     * @see #getCircuitBreakerThreshold()
+     */
+    default int getCircuitBreakerDelay()
+    {
+        return 0;
+    }
+
+    /**
+     * The number of milliseconds the configured renderer has to render a formula before the
+     * {@link #getSafeRenderer() safe renderer} is started too, the first image available being displayed. The image of
+     * the configured renderer is still stored when it's ready, and displayed next time.
+     *
+     * @return the number of milliseconds to wait for the configured renderer, {@code 0} to always wait for it
+     * @since 14.9
+     */
+    default long getHedgingDelay()
+    {
+        return 0;
+    }
+
+    /**
+     * The maximum number of bytes of the images embedded directly in the page as data URIs, saving the browser a
+     * request for each of them. Bigger images are displayed using their URL.
+     *
+     * @return the maximum size of the images embedded in the page, {@code 0} to never embed the images
+     * @since 14.9
+     */
+    default int getDataURIMaxSize()
+    {
+        return 0;
+    }
+
+    /**
+     * Whether the SVG images of the formulae are embedded directly in the page, instead of being requested by the
+     * browser. Only the elements and attributes describing the outline of the glyphs are kept from the images, the
+     * rest being removed before the images are embedded. The glyphs of the embedded images are defined only once in the
+     * page and shared by all the formulae using them.
+     *
+     * @return {@code true} if the SVG images should be embedded in the page
+     * @since 14.9
+     */
+    default boolean isInlineSVG()
+    {
+        return false;
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.rendering.macro.formula.FormulaMacroConfiguration;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link FormulaFailureCache}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class FormulaFailureCacheTest
+{
+    private static final String MESSAGE = "Failed to render formula [\\frac{a}]";
+
+    @InjectMockComponents
+    private FormulaFailureCache failureCache;
+
+    @MockComponent
+    private FormulaMacroConfiguration configuration;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    private final Map<String, String> failures = new HashMap<>();
+
+    @BeforeComponent
+    @SuppressWarnings("unchecked")
+    void configure() throws Exception
+    {
+        when(this.configuration.getFailureCacheLifespan()).thenReturn(60);
+
+        Cache<String> cache = mock(Cache.class);
+        when(cache.get(anyString())).then(invocation -> this.failures.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> this.failures.put(invocation.getArgument(0), invocation.getArgument(1))).when(cache)
+            .set(anyString(), anyString());
+        when(this.cacheManager.<String>createNewCache(any(CacheConfiguration.class))).thenReturn(cache);
+    }
+
+    @Test
+    void getFailure()
+    {
+        assertTrue(this.failureCache.isEnabled());
+
+        this.failureCache.addFailure("native", "image1", MESSAGE);
+
+        assertEquals(MESSAGE, this.failureCache.getFailure("native", "image1"));
+    }
+
+    @Test
+    void getFailureOfOtherRenderer()
+    {
+        // A formula that is invalid for one renderer can be supported by another one
+        this.failureCache.addFailure("native", "image1", MESSAGE);
+
+        assertNull(this.failureCache.getFailure("snuggletex", "image1"));
+    }
+
+    @Test
+    void getFailureOfOtherImage()
+    {
+        // The image identifier changes with the formula, so a modified formula is rendered again
+        this.failureCache.addFailure("native", "image1", MESSAGE);
+
+        assertNull(this.failureCache.getFailure("native", "image2"));
+    }
+
+    @Test
+    void addFailureWithoutImageId()
+    {
+        this.failureCache.addFailure("native", null, MESSAGE);
+
+        assertTrue(this.failures.isEmpty());
+        assertNull(this.failureCache.getFailure("native", null));
+    }
+}
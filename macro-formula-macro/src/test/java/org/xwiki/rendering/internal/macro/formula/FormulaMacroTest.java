@@ -0,0 +1,393 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.formula.FormulaRenderExecutor;
+import org.xwiki.formula.FormulaRenderTimeoutException;
+import org.xwiki.formula.FormulaRenderer;
+import org.xwiki.formula.FormulaRenderer.FontSize;
+import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.formula.FormulaRequest;
+import org.xwiki.formula.ImageData;
+import org.xwiki.formula.ImageStorage;
+import org.xwiki.formula.internal.TemporaryResourceReferenceProvider;
+import org.xwiki.properties.BeanDescriptor;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ImageBlock;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.RawBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.macro.formula.FormulaMacroConfiguration;
+import org.xwiki.rendering.macro.formula.FormulaMacroParameters;
+import org.xwiki.rendering.listener.reference.ResourceReference;
+import org.xwiki.rendering.listener.reference.ResourceType;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.resource.ResourceReferenceSerializer;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+import org.xwiki.url.ExtendedURL;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link FormulaMacro}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList(FormulaSVGInliner.class)
+class FormulaMacroTest
+{
+    private static final String FORMULA = "a+b";
+
+    private static final String IMAGE_ID = "image";
+
+    private static final String SAFE_IMAGE_ID = "image-safe";
+
+    private static final ImageData SAFE_IMAGE = new ImageData(new byte[] {1, 2, 3}, Type.PNG);
+
+    private static final FormulaRequest REQUEST = new FormulaRequest(FORMULA, false, FontSize.NORMAL, Type.PNG);
+
+    @InjectMockComponents
+    private FormulaMacro macro;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private BeanManager beanManager;
+
+    @MockComponent
+    private FormulaMacroConfiguration configuration;
+
+    @MockComponent
+    private ImageStorage storage;
+
+    @MockComponent
+    private FormulaRequestStore requestStore;
+
+    @MockComponent
+    private FormulaRendererCircuitBreaker circuitBreaker;
+
+    @MockComponent
+    private FormulaFailureCache failureCache;
+
+    @MockComponent
+    private FormulaRenderExecutor renderExecutor;
+
+    @MockComponent
+    private TemporaryResourceReferenceProvider resourceReferenceProvider;
+
+    @MockComponent
+    private ResourceReferenceSerializer<org.xwiki.resource.ResourceReference, ExtendedURL>
+        resourceReferenceSerializer;
+
+    private FormulaRenderer renderer;
+
+    private FormulaRenderer safeRenderer;
+
+    /** Blocks the safe renderer until the test is finished. */
+    private final CountDownLatch safeRendererLatch = new CountDownLatch(1);
+
+    @BeforeComponent
+    void beforeComponent()
+    {
+        when(this.beanManager.getBeanDescriptor(FormulaMacroParameters.class)).thenReturn(mock(BeanDescriptor.class));
+    }
+
+    @BeforeEach
+    void configure() throws Exception
+    {
+        this.renderer = this.componentManager.registerMockComponent(FormulaRenderer.class, "native");
+        this.safeRenderer = this.componentManager.registerMockComponent(FormulaRenderer.class, "safe");
+
+        when(this.configuration.getRenderer()).thenReturn("native");
+        when(this.configuration.getSafeRenderer()).thenReturn("safe");
+        when(this.configuration.getDefaultFontSize()).thenReturn(FontSize.NORMAL);
+        when(this.configuration.getDefaultType()).thenReturn(Type.PNG);
+        when(this.circuitBreaker.allowRequest(anyString())).thenReturn(true);
+        when(this.renderer.getImageId(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn(IMAGE_ID);
+        // The safe renderer runs in its own thread, like with the actual executor
+        when(this.renderExecutor.submit(any())).then(
+            invocation -> CompletableFuture.supplyAsync(() -> call(invocation.<Callable<?>>getArgument(0))));
+
+        mockImageURL(IMAGE_ID);
+        mockImageURL(SAFE_IMAGE_ID);
+        mockImageURL("safe-image");
+    }
+
+    @AfterEach
+    void releaseSafeRenderer()
+    {
+        this.safeRendererLatch.countDown();
+    }
+
+    @Test
+    void executeHedgedWhenRendererFinishesFirst() throws Exception
+    {
+        when(this.configuration.getHedgingDelay()).thenReturn(10L);
+        CompletableFuture<String> rendering = new CompletableFuture<>();
+        when(this.renderer.processAsync(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn(rendering);
+        // The configured renderer finishes while the safe renderer is still running
+        when(this.safeRenderer.renderImage(REQUEST)).then(invocation -> {
+            rendering.complete(IMAGE_ID);
+            this.safeRendererLatch.await();
+            return SAFE_IMAGE;
+        });
+
+        assertEquals(IMAGE_ID, execute());
+        verify(this.storage, never()).put(any(), any());
+        verify(this.circuitBreaker).recordSuccess("native");
+    }
+
+    @Test
+    void executeHedgedWhenSafeRendererFinishesFirst() throws Exception
+    {
+        when(this.configuration.getHedgingDelay()).thenReturn(10L);
+        when(this.renderer.processAsync(FORMULA, false, FontSize.NORMAL, Type.PNG))
+            .thenReturn(new CompletableFuture<>());
+        when(this.safeRenderer.renderImage(REQUEST)).thenReturn(SAFE_IMAGE);
+
+        // The image of the safe renderer doesn't replace the image of the configured renderer
+        assertEquals(SAFE_IMAGE_ID, execute());
+        verify(this.storage).put(SAFE_IMAGE_ID, SAFE_IMAGE);
+        verify(this.circuitBreaker, never()).recordSuccess("native");
+    }
+
+    @Test
+    void executeHedgedWhenSafeRendererFails() throws Exception
+    {
+        when(this.configuration.getHedgingDelay()).thenReturn(10L);
+        CompletableFuture<String> rendering = new CompletableFuture<>();
+        when(this.renderer.processAsync(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn(rendering);
+        when(this.safeRenderer.renderImage(REQUEST)).then(invocation -> {
+            // Let the macro wait for the configured renderer
+            new Thread(() -> rendering.complete(IMAGE_ID)).start();
+            throw new IOException("Failed");
+        });
+
+        assertEquals(IMAGE_ID, execute());
+        verify(this.storage, never()).put(any(), any());
+    }
+
+    @Test
+    void executeWhenRendererTimesOut() throws Exception
+    {
+        when(this.configuration.getHedgingDelay()).thenReturn(10L);
+        when(this.renderer.processAsync(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn(
+            CompletableFuture.failedFuture(new FormulaRenderTimeoutException("The [latex] command timed out")));
+        when(this.safeRenderer.process(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn("safe-image");
+
+        assertEquals("safe-image", execute());
+        verify(this.circuitBreaker).recordFailure("native");
+    }
+
+    @Test
+    void executeLazily() throws Exception
+    {
+        when(this.configuration.isLazyRendering()).thenReturn(true);
+
+        assertEquals(IMAGE_ID, execute());
+        verify(this.requestStore).save(IMAGE_ID, "native", REQUEST);
+        verify(this.renderer, never()).process(any(), eq(false), any(), any());
+        // Nothing was rendered, so the renderer may still be broken
+        verify(this.circuitBreaker, never()).recordSuccess(any());
+    }
+
+    @Test
+    void executeLazilyWhenStored() throws Exception
+    {
+        when(this.configuration.isLazyRendering()).thenReturn(true);
+        when(this.storage.exists(IMAGE_ID)).thenReturn(true);
+
+        // The image is displayed right away, without waiting for the browser to request it
+        assertEquals(IMAGE_ID, execute());
+        verify(this.requestStore, never()).save(any(), any(), any());
+        verify(this.renderer, never()).process(any(), eq(false), any(), any());
+    }
+
+    @Test
+    void executeRendersOtherFormulaeAsBatch() throws Exception
+    {
+        when(this.configuration.isParallelRendering()).thenReturn(true);
+        when(this.renderer.process(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn(IMAGE_ID);
+        CompletableFuture<List<FormulaRequest>> batch = new CompletableFuture<>();
+        when(this.renderer.processAll(any())).then(invocation -> {
+            batch.complete(invocation.getArgument(0));
+            return Collections.emptyList();
+        });
+
+        MacroBlock current = new MacroBlock("formula", Collections.emptyMap(), FORMULA, false);
+        XDOM xdom = new XDOM(List.of(new MacroBlock("formula", Collections.emptyMap(), "x^2", false), current,
+            new MacroBlock("formula", Collections.emptyMap(), "y^2", true),
+            new MacroBlock("formula", Collections.emptyMap(), "x^2", false)));
+        MacroTransformationContext context = new MacroTransformationContext();
+        context.setXDOM(xdom);
+        context.setCurrentMacroBlock(current);
+
+        assertEquals(IMAGE_ID, execute(context));
+        // The other formulae of the document are rendered together, once
+        assertEquals(List.of(new FormulaRequest("x^2", false, FontSize.NORMAL, Type.PNG),
+            new FormulaRequest("y^2", true, FontSize.NORMAL, Type.PNG)), batch.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void executeSkipsAvailableAndFailedFormulae() throws Exception
+    {
+        when(this.configuration.isParallelRendering()).thenReturn(true);
+        when(this.renderer.process(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn(IMAGE_ID);
+        when(this.renderer.getImageId("x^2", false, FontSize.NORMAL, Type.PNG)).thenReturn("stored");
+        when(this.storage.exists("stored")).thenReturn(true);
+        when(this.renderer.getImageId("y^2", false, FontSize.NORMAL, Type.PNG)).thenReturn("failed");
+        when(this.failureCache.getFailure("native", "failed")).thenReturn("Failed");
+        when(this.renderer.getImageId("z^2", false, FontSize.NORMAL, Type.PNG)).thenReturn("missing");
+        CompletableFuture<List<FormulaRequest>> batch = new CompletableFuture<>();
+        when(this.renderer.processAll(any())).then(invocation -> {
+            batch.complete(invocation.getArgument(0));
+            return Collections.emptyList();
+        });
+
+        MacroBlock current = new MacroBlock("formula", Collections.emptyMap(), FORMULA, false);
+        MacroTransformationContext context = new MacroTransformationContext();
+        context.setXDOM(new XDOM(List.of(current, new MacroBlock("formula", Collections.emptyMap(), "x^2", false),
+            new MacroBlock("formula", Collections.emptyMap(), "y^2", false),
+            new MacroBlock("formula", Collections.emptyMap(), "z^2", false))));
+        context.setCurrentMacroBlock(current);
+
+        assertEquals(IMAGE_ID, execute(context));
+        assertEquals(List.of(new FormulaRequest("z^2", false, FontSize.NORMAL, Type.PNG)),
+            batch.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void executeWithDataURI() throws Exception
+    {
+        when(this.configuration.getDataURIMaxSize()).thenReturn(3);
+        when(this.renderer.process(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn(IMAGE_ID);
+        when(this.storage.get(IMAGE_ID)).thenReturn(SAFE_IMAGE);
+
+        ResourceReference reference = executeImage(new MacroTransformationContext());
+        assertEquals(ResourceType.DATA, reference.getType());
+        assertEquals("image/png;base64,AQID", reference.getReference());
+    }
+
+    @Test
+    void executeWithImageTooBigForDataURI() throws Exception
+    {
+        when(this.configuration.getDataURIMaxSize()).thenReturn(2);
+        when(this.renderer.process(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn(IMAGE_ID);
+        when(this.storage.get(IMAGE_ID)).thenReturn(SAFE_IMAGE);
+
+        ResourceReference reference = executeImage(new MacroTransformationContext());
+        assertEquals(ResourceType.URL, reference.getType());
+        assertEquals(IMAGE_ID, reference.getReference());
+    }
+
+    @Test
+    void executeWithInlineSVG() throws Exception
+    {
+        when(this.configuration.getDefaultType()).thenReturn(Type.SVG);
+        when(this.configuration.isInlineSVG()).thenReturn(true);
+        when(this.renderer.process(FORMULA, false, FontSize.NORMAL, Type.SVG)).thenReturn(IMAGE_ID);
+        when(this.storage.get(IMAGE_ID)).thenReturn(new ImageData(("<svg xmlns='http://www.w3.org/2000/svg' "
+            + "xmlns:xlink='http://www.w3.org/1999/xlink'><defs><path id='g0-97' d='M1 2L3 4Z'/></defs>"
+            + "<use xlink:href='#g0-97'/></svg>").getBytes(StandardCharsets.UTF_8), Type.SVG));
+
+        MacroBlock current = new MacroBlock("formula", Collections.emptyMap(), FORMULA, false);
+        XDOM xdom = new XDOM(List.of(new ParagraphBlock(List.of(new WordBlock("text"))), current));
+        MacroTransformationContext context = new MacroTransformationContext();
+        context.setXDOM(xdom);
+        context.setCurrentMacroBlock(current);
+        List<Block> result = this.macro.execute(new FormulaMacroParameters(), FORMULA, context);
+
+        RawBlock svg = (RawBlock) result.get(0).getChildren().get(0);
+        assertTrue(svg.getRawContent().contains("<use"));
+        assertFalse(svg.getRawContent().contains("<path"));
+        // The glyphs are defined once, at the start of the document
+        FormulaGlyphsBlock glyphs = (FormulaGlyphsBlock) xdom.getChildren().get(0);
+        assertEquals(1, glyphs.getGlyphs().size());
+        assertTrue(glyphs.getRawContent().contains("<path"));
+    }
+
+    private String execute() throws Exception
+    {
+        return execute(new MacroTransformationContext());
+    }
+
+    private String execute(MacroTransformationContext context) throws Exception
+    {
+        return executeImage(context).getReference();
+    }
+
+    private ResourceReference executeImage(MacroTransformationContext context) throws Exception
+    {
+        List<Block> result = this.macro.execute(new FormulaMacroParameters(), FORMULA, context);
+        ImageBlock image = result.get(0).getFirstBlock(block -> block instanceof ImageBlock, Block.Axes.DESCENDANT);
+        return image.getReference();
+    }
+
+    private void mockImageURL(String imageId) throws Exception
+    {
+        TemporaryResourceReference reference = mock(TemporaryResourceReference.class, imageId);
+        when(this.resourceReferenceProvider.getImageReference(imageId)).thenReturn(reference);
+        ExtendedURL url = mock(ExtendedURL.class);
+        when(url.serialize()).thenReturn(imageId);
+        when(this.resourceReferenceSerializer.serialize(reference)).thenReturn(url);
+    }
+
+    private static Object call(Callable<?> task)
+    {
+        try {
+            return task.call();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
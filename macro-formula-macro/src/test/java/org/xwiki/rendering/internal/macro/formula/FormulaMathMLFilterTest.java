@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for {@link FormulaMathMLFilter}.
+ *
+ * @version $Id$
+ */
+class FormulaMathMLFilterTest
+{
+    private final FormulaMathMLFilter filter = new FormulaMathMLFilter();
+
+    @Test
+    void filter() throws Exception
+    {
+        String mathML = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\" display=\"block\"><semantics><mrow>"
+            + "<mi>a</mi><mo stretchy=\"false\">+</mo><mi mathvariant=\"bold\">b</mi></mrow>"
+            + "<annotation encoding=\"SnuggleTeX\">a+\\mathbf{b}</annotation></semantics></math>";
+
+        assertEquals(mathML, filter(mathML));
+    }
+
+    @Test
+    void filterLinksAndMarkup() throws Exception
+    {
+        String mathML = "<math xmlns='http://www.w3.org/1998/Math/MathML' xmlns:xlink='http://www.w3.org/1999/xlink' "
+            + "onmouseover='alert(1)'><semantics><mrow>"
+            + "<mi href='javascript:alert(2)'>a</mi>"
+            + "<mi xlink:href='https://example.org'>b</mi>"
+            + "<maction actiontype='statusline'><mi>c</mi><mtext>alert(3)</mtext></maction>"
+            + "<mi mathbackground='url(https://example.org/image.png)' style='color:red'>d</mi>"
+            + "<mtext><![CDATA[<script>alert(4)</script>]]></mtext>"
+            + "</mrow><annotation-xml encoding='text/html'><script xmlns='http://www.w3.org/1999/xhtml'>alert(5)"
+            + "</script></annotation-xml></semantics></math>";
+
+        assertEquals("<math xmlns=\"http://www.w3.org/1998/Math/MathML\" "
+            + "xmlns:xlink=\"http://www.w3.org/1999/xlink\"><semantics><mrow><mi>a</mi><mi>b</mi><mi>d</mi>"
+            + "<mtext>&lt;script&gt;alert(4)&lt;/script&gt;</mtext></mrow></semantics></math>", filter(mathML));
+    }
+
+    @Test
+    void filterOtherMarkup()
+    {
+        assertThrows(IOException.class, () -> filter("<svg xmlns='http://www.w3.org/2000/svg' onload='alert(1)'/>"));
+    }
+
+    private String filter(String mathML) throws IOException
+    {
+        return this.filter.filter(mathML.getBytes(StandardCharsets.UTF_8));
+    }
+}
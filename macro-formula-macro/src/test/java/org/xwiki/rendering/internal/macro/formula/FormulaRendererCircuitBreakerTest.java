@@ -0,0 +1,160 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.xwiki.rendering.macro.formula.FormulaMacroConfiguration;
+import org.xwiki.test.LogLevel;
+import org.xwiki.test.junit5.LogCaptureExtension;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link FormulaRendererCircuitBreaker}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class FormulaRendererCircuitBreakerTest
+{
+    private static final String NATIVE = "native";
+
+    private static final String OPEN_MESSAGE =
+        "The [native] formula renderer keeps failing, using the safe renderer for [60] seconds";
+
+    @RegisterExtension
+    LogCaptureExtension logCapture = new LogCaptureExtension(LogLevel.INFO);
+
+    @InjectMockComponents
+    private FormulaRendererCircuitBreaker circuitBreaker;
+
+    @MockComponent
+    private FormulaMacroConfiguration configuration;
+
+    @BeforeEach
+    void configure()
+    {
+        when(this.configuration.getCircuitBreakerThreshold()).thenReturn(3);
+        when(this.configuration.getCircuitBreakerDelay()).thenReturn(60);
+    }
+
+    @Test
+    void allowRequestWhenDisabled()
+    {
+        when(this.configuration.getCircuitBreakerThreshold()).thenReturn(0);
+
+        for (int i = 0; i < 10; i++) {
+            this.circuitBreaker.recordFailure(NATIVE);
+        }
+
+        assertTrue(this.circuitBreaker.allowRequest(NATIVE));
+    }
+
+    @Test
+    void openAfterConsecutiveFailures()
+    {
+        this.circuitBreaker.recordFailure(NATIVE);
+        this.circuitBreaker.recordFailure(NATIVE);
+        assertTrue(this.circuitBreaker.allowRequest(NATIVE));
+
+        this.circuitBreaker.recordFailure(NATIVE);
+        assertFalse(this.circuitBreaker.allowRequest(NATIVE));
+        // The other renderers are still used
+        assertTrue(this.circuitBreaker.allowRequest("snuggletex"));
+
+        assertEquals(1, this.logCapture.size());
+        assertEquals(OPEN_MESSAGE, this.logCapture.getMessage(0));
+    }
+
+    @Test
+    void successResetsFailures()
+    {
+        this.circuitBreaker.recordFailure(NATIVE);
+        this.circuitBreaker.recordFailure(NATIVE);
+        this.circuitBreaker.recordSuccess(NATIVE);
+        this.circuitBreaker.recordFailure(NATIVE);
+        this.circuitBreaker.recordFailure(NATIVE);
+
+        assertTrue(this.circuitBreaker.allowRequest(NATIVE));
+    }
+
+    @Test
+    void closeAfterSuccessfulProbe()
+    {
+        open();
+
+        // A single rendering probes the renderer once the delay has elapsed
+        when(this.configuration.getCircuitBreakerDelay()).thenReturn(0);
+        assertTrue(this.circuitBreaker.allowRequest(NATIVE));
+        this.circuitBreaker.recordSuccess(NATIVE);
+
+        when(this.configuration.getCircuitBreakerDelay()).thenReturn(60);
+        assertTrue(this.circuitBreaker.allowRequest(NATIVE));
+        // The failures are counted again from zero
+        this.circuitBreaker.recordFailure(NATIVE);
+        assertTrue(this.circuitBreaker.allowRequest(NATIVE));
+
+        assertEquals(2, this.logCapture.size());
+        assertEquals("The [native] formula renderer works again", this.logCapture.getMessage(1));
+    }
+
+    @Test
+    void reopenAfterFailedProbe()
+    {
+        open();
+
+        when(this.configuration.getCircuitBreakerDelay()).thenReturn(0);
+        assertTrue(this.circuitBreaker.allowRequest(NATIVE));
+        // A single failure of the probe is enough to open the circuit again
+        this.circuitBreaker.recordFailure(NATIVE);
+
+        when(this.configuration.getCircuitBreakerDelay()).thenReturn(60);
+        assertFalse(this.circuitBreaker.allowRequest(NATIVE));
+
+        // The circuit was already open, so it's only reported once
+        assertEquals(1, this.logCapture.size());
+    }
+
+    @Test
+    void recordSuccessOfUnknownRenderer()
+    {
+        this.circuitBreaker.recordSuccess(NATIVE);
+
+        assertTrue(this.circuitBreaker.allowRequest(NATIVE));
+        assertEquals(0, this.logCapture.size());
+    }
+
+    private void open()
+    {
+        for (int i = 0; i < 3; i++) {
+            this.circuitBreaker.recordFailure(NATIVE);
+        }
+        assertFalse(this.circuitBreaker.allowRequest(NATIVE));
+        assertEquals(OPEN_MESSAGE, this.logCapture.getMessage(0));
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.inject.Provider;
+import javax.servlet.ServletOutputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.formula.FormulaRenderer;
+import org.xwiki.formula.FormulaRenderer.FontSize;
+import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.formula.FormulaRequest;
+import org.xwiki.formula.ImageData;
+import org.xwiki.formula.ImageStorage;
+import org.xwiki.formula.internal.TemporaryResourceReferenceProvider;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.rendering.internal.macro.formula.FormulaRequestStore.StoredRequest;
+import org.xwiki.rendering.macro.formula.FormulaMacroConfiguration;
+import org.xwiki.resource.ResourceReferenceHandlerChain;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link FormulaResourceReferenceHandler}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class FormulaResourceReferenceHandlerTest
+{
+    private static final String FORMULA = "a+b";
+
+    private static final String IMAGE_ID = "image";
+
+    private static final ImageData SAFE_IMAGE = new ImageData(new byte[] {1, 2, 3}, Type.PNG);
+
+    @InjectMockComponents
+    private FormulaResourceReferenceHandler handler;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private Provider<XWikiContext> xwikiContextProvider;
+
+    @MockComponent
+    private ContextualAuthorizationManager authorization;
+
+    @MockComponent
+    private FormulaMacroConfiguration configuration;
+
+    @MockComponent
+    private ImageStorage storage;
+
+    @MockComponent
+    private FormulaRequestStore requestStore;
+
+    @MockComponent
+    private FormulaRendererCircuitBreaker circuitBreaker;
+
+    @MockComponent
+    private FormulaFailureCache failureCache;
+
+    @MockComponent
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @MockComponent
+    private TemporaryResourceReferenceProvider resourceReferenceProvider;
+
+    private FormulaRenderer renderer;
+
+    private FormulaRenderer safeRenderer;
+
+    private TemporaryResourceReference reference;
+
+    private XWikiContext xcontext;
+
+    private XWikiResponse response;
+
+    private ServletOutputStream output;
+
+    @BeforeEach
+    void configure() throws Exception
+    {
+        this.renderer = this.componentManager.registerMockComponent(FormulaRenderer.class, "native");
+        this.safeRenderer = this.componentManager.registerMockComponent(FormulaRenderer.class, "safe");
+        when(this.configuration.getSafeRenderer()).thenReturn("safe");
+        when(this.safeRenderer.process(FORMULA, false, FontSize.NORMAL, Type.PNG)).thenReturn("safe-image");
+        when(this.safeRenderer.getImage("safe-image")).thenReturn(SAFE_IMAGE);
+
+        // The image is shared between the documents of a space
+        EntityReference owningReference = mock(EntityReference.class);
+        when(owningReference.getType()).thenReturn(EntityType.SPACE);
+        when(this.authorization.hasAccess(Right.VIEW, owningReference)).thenReturn(true);
+        this.reference = mock(TemporaryResourceReference.class);
+        when(this.reference.getModuleId()).thenReturn(TemporaryResourceReferenceProvider.MODULE_ID);
+        when(this.reference.getResourcePath()).thenReturn(List.of(IMAGE_ID));
+        when(this.reference.getOwningEntityReference()).thenReturn(owningReference);
+
+        this.xcontext = mock(XWikiContext.class);
+        when(this.xwikiContextProvider.get()).thenReturn(this.xcontext);
+        this.response = mock(XWikiResponse.class);
+        this.output = mock(ServletOutputStream.class);
+        when(this.xcontext.getResponse()).thenReturn(this.response);
+        when(this.response.getOutputStream()).thenReturn(this.output);
+
+        when(this.requestStore.load(IMAGE_ID))
+            .thenReturn(new StoredRequest("native", new FormulaRequest(FORMULA, false, FontSize.NORMAL, Type.PNG)));
+        when(this.circuitBreaker.allowRequest("native")).thenReturn(true);
+    }
+
+    @Test
+    void handleRendersLazily() throws Exception
+    {
+        this.handler.handle(this.reference, mock(ResourceReferenceHandlerChain.class));
+
+        verify(this.renderer).process(FORMULA, false, FontSize.NORMAL, Type.PNG);
+        verify(this.circuitBreaker).recordSuccess("native");
+        verify(this.safeRenderer, never()).process(any(), eq(false), any(), any());
+    }
+
+    @Test
+    void handleWhenRendererFails() throws Exception
+    {
+        when(this.renderer.process(FORMULA, false, FontSize.NORMAL, Type.PNG))
+            .thenThrow(new IOException("The [latex] command timed out"));
+
+        this.handler.handle(this.reference, mock(ResourceReferenceHandlerChain.class));
+
+        verify(this.circuitBreaker).recordFailure("native");
+        verify(this.failureCache, never()).addFailure(any(), any(), any());
+        verify(this.output).write(SAFE_IMAGE.getData());
+    }
+
+    @Test
+    void handleWhenFormulaIsInvalid() throws Exception
+    {
+        when(this.renderer.process(FORMULA, false, FontSize.NORMAL, Type.PNG))
+            .thenThrow(new IllegalArgumentException("Undefined control sequence"));
+
+        this.handler.handle(this.reference, mock(ResourceReferenceHandlerChain.class));
+
+        verify(this.failureCache).addFailure(eq("native"), eq(IMAGE_ID), anyString());
+        verify(this.circuitBreaker, never()).recordFailure(any());
+        verify(this.output).write(SAFE_IMAGE.getData());
+    }
+
+    @Test
+    void handleWhenRendererKeepsFailing() throws Exception
+    {
+        when(this.circuitBreaker.allowRequest("native")).thenReturn(false);
+
+        this.handler.handle(this.reference, mock(ResourceReferenceHandlerChain.class));
+
+        verify(this.renderer, never()).process(any(), eq(false), any(), any());
+        verify(this.output).write(SAFE_IMAGE.getData());
+    }
+
+    @Test
+    void handleWhenFormulaFailedRecently() throws Exception
+    {
+        when(this.failureCache.getFailure("native", IMAGE_ID)).thenReturn("Failed");
+
+        this.handler.handle(this.reference, mock(ResourceReferenceHandlerChain.class));
+
+        verify(this.renderer, never()).process(any(), eq(false), any(), any());
+        verify(this.output).write(SAFE_IMAGE.getData());
+    }
+
+    @Test
+    void handleSendsCompressedImage(@TempDir File directory) throws Exception
+    {
+        when(this.storage.exists(IMAGE_ID)).thenReturn(true);
+        XWikiRequest request = mock(XWikiRequest.class);
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+        when(this.xcontext.getRequest()).thenReturn(request);
+        TemporaryResourceReference compressedReference = mock(TemporaryResourceReference.class);
+        when(this.resourceReferenceProvider.getCompressedImageReference(IMAGE_ID)).thenReturn(compressedReference);
+        File file = new File(directory, "image.gz");
+        Files.write(file.toPath(), new byte[] {4, 5, 6});
+        when(this.temporaryResourceStore.getTemporaryFile(compressedReference)).thenReturn(file);
+        ResourceReferenceHandlerChain chain = mock(ResourceReferenceHandlerChain.class);
+
+        this.handler.handle(this.reference, chain);
+
+        verify(this.response).setHeader("Content-Encoding", "gzip");
+        // The access to the image depends on the user, so it must not be cached by shared caches
+        verify(this.response).setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        verify(this.response).setContentLengthLong(3);
+        verify(chain, never()).handleNext(any());
+    }
+
+    @Test
+    void handleSendsImageKeptInMemory() throws Exception
+    {
+        // The file of the image was cleaned up, but the image is still in memory
+        when(this.storage.exists(IMAGE_ID)).thenReturn(true);
+        when(this.storage.get(IMAGE_ID)).thenReturn(SAFE_IMAGE);
+        ResourceReferenceHandlerChain chain = mock(ResourceReferenceHandlerChain.class);
+
+        this.handler.handle(this.reference, chain);
+
+        verify(this.response).setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        verify(this.output).write(SAFE_IMAGE.getData());
+        verify(chain, never()).handleNext(any());
+    }
+}
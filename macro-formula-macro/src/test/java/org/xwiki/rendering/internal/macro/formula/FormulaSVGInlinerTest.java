@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.rendering.internal.macro.formula;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link FormulaSVGInliner}.
+ *
+ * @version $Id$
+ */
+class FormulaSVGInlinerTest
+{
+    private static final String SVG_START = "<svg version='1.1' xmlns='http://www.w3.org/2000/svg' "
+        + "xmlns:xlink='http://www.w3.org/1999/xlink' width='10pt' height='5pt' viewBox='0 0 10 5'>";
+
+    private static final String GLYPH = "<defs><path id='g0-97' d='M1 2L3 4Z'/></defs>";
+
+    private static final Pattern GLYPH_REFERENCE = Pattern.compile("xlink:href=\"#(formula-glyph-[a-z0-9]+)\"");
+
+    private final FormulaSVGInliner inliner = new FormulaSVGInliner();
+
+    private final Map<String, String> glyphs = new LinkedHashMap<>();
+
+    @Test
+    void inline() throws Exception
+    {
+        Map<String, String> glyphs = new LinkedHashMap<>();
+        String markup = inline(SVG_START + GLYPH + "<g id='page1'><use x='1' y='2' xlink:href='#g0-97'/>"
+            + "<rect x='1' y='3' width='2' height='0.5'/></g></svg>", glyphs);
+
+        Matcher reference = GLYPH_REFERENCE.matcher(markup);
+        assertTrue(reference.find());
+        // The glyphs are defined outside of the image
+        assertFalse(markup.contains("<defs"));
+        assertFalse(markup.contains("<path"));
+        assertEquals(Collections.singleton(reference.group(1)), glyphs.keySet());
+        assertTrue(glyphs.get(reference.group(1)).contains("d=\"M1 2L3 4Z\" id=\"" + reference.group(1) + "\""));
+        assertTrue(markup.contains("<rect height=\"0.5\" width=\"2\" x=\"1\" y=\"3\"/>"));
+        assertTrue(markup.contains("aria-label=\"a+b\""));
+        assertTrue(markup.contains("class=\"formula-block\""));
+        // The identifiers that are not computed from the glyphs would conflict with the other formulae of the page
+        assertFalse(markup.contains("page1"));
+    }
+
+    @Test
+    void inlineSharedGlyphs() throws Exception
+    {
+        // The identifiers of the glyphs are local to each image, while their outline is the same
+        Map<String, String> glyphs = new LinkedHashMap<>();
+        String first = inline(SVG_START + "<defs><path id='g0-97' d='M1 2L3 4Z'/><path id='g0-98' d='M0 0H1Z'/>"
+            + "</defs><g><use x='1' y='2' xlink:href='#g0-97'/><use x='3' y='2' xlink:href='#g0-98'/></g></svg>",
+            glyphs);
+        String second = inline(SVG_START + "<defs><path id='g1-1' d='M1 2L3 4Z'/></defs>"
+            + "<g><use x='5' y='2' xlink:href='#g1-1'/></g></svg>", glyphs);
+
+        Matcher firstReference = GLYPH_REFERENCE.matcher(first);
+        assertTrue(firstReference.find());
+        Matcher secondReference = GLYPH_REFERENCE.matcher(second);
+        assertTrue(secondReference.find());
+        assertEquals(firstReference.group(1), secondReference.group(1));
+        // Each glyph is defined once for the page
+        assertEquals(2, glyphs.size());
+        assertFalse(second.contains("<path"));
+    }
+
+    @Test
+    void inlineRawSpecial() throws Exception
+    {
+        // dvisvgm copies the content of the \special{dvisvgm:raw ...} commands of the formula to the SVG image
+        String markup = inline(SVG_START.replace(">", " onload='alert(1)'>") + GLYPH + "<g>"
+            + "<script>alert(2)</script>"
+            + "<foreignObject><div xmlns='http://www.w3.org/1999/xhtml' onclick='alert(3)'>x</div></foreignObject>"
+            + "<use x='1' y='2' xlink:href='#g0-97'/>"
+            + "<use x='1' y='2' xlink:href='javascript:alert(4)'/>"
+            + "<use x='1' y='2' href='https://example.org/glyphs.svg#a'/>"
+            + "<a href='javascript:alert(5)'><rect width='1' height='1'/></a>"
+            + "<rect style='fill:red' fill='url(https://example.org/paint)' stroke='u\\72l(https://example.org)' "
+            + "onmouseover='alert(6)' width='1' height='1'/>"
+            + "<![CDATA[<script>alert(7)</script>]]><!-- <script>alert(8)</script> -->"
+            + "<?xml-stylesheet href='https://example.org/style.css'?>"
+            + "</g></svg>");
+
+        assertFalse(markup.contains("<script"));
+        assertFalse(markup.contains("foreignObject"));
+        assertFalse(markup.contains("<div"));
+        assertFalse(markup.contains("<a"));
+        assertFalse(Pattern.compile("\\son\\w+=").matcher(markup).find());
+        assertFalse(markup.contains("javascript"));
+        assertFalse(markup.contains("example.org"));
+        assertFalse(markup.contains("style"));
+        assertFalse(markup.contains("alert"));
+        assertTrue(GLYPH_REFERENCE.matcher(markup).find());
+        assertTrue(markup.contains("<rect height=\"1\" width=\"1\"/>"));
+        assertEquals(1, this.glyphs.size());
+        assertFalse(this.glyphs.values().iterator().next().contains("alert"));
+    }
+
+    @Test
+    void inlineLocalURL() throws Exception
+    {
+        String markup = inline(SVG_START + "<defs><path id='clip' d='M0 0H1V1Z'/></defs>"
+            + "<g fill='url(#clip)'><rect width='1' height='1'/></g></svg>");
+
+        assertTrue(markup.contains("fill=\"url(#formula-glyph-"));
+        assertEquals(1, this.glyphs.size());
+    }
+
+    @Test
+    void inlineOtherMarkup()
+    {
+        assertThrows(IOException.class,
+            () -> inline("<html xmlns='http://www.w3.org/1999/xhtml'><body onload='alert(1)'/></html>"));
+    }
+
+    private String inline(String svg) throws IOException
+    {
+        return inline(svg, this.glyphs);
+    }
+
+    private String inline(String svg, Map<String, String> glyphs) throws IOException
+    {
+        return this.inliner.inline(svg.getBytes(StandardCharsets.UTF_8), glyphs, "a+b", "formula-block");
+    }
+}
@@ -25,6 +25,7 @@ import javax.inject.Provider;
 
 import org.junit.jupiter.api.AfterEach;
 import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.configuration.internal.MemoryConfigurationSource;
 import org.xwiki.formula.FormulaRenderer;
 import org.xwiki.formula.ImageStorage;
 import org.xwiki.model.reference.DocumentReference;
@@ -77,17 +78,22 @@ public class IntegrationTests implements RenderingTests
                 ResourceReferenceSerializer.class, TemporaryResourceReference.class,ExtendedURL.class));
 
         TemporaryResourceReference temporaryResourceReference1 = new TemporaryResourceReference("formula",
-            "190ef2f68e7fbd75c869d74dea959b1a48faadefc7a0c9219e3e94d005821935", documentReference);
+            "fc0da834ab64c463bd3c123f828dd168b253833d9c7ba1ac2d928d083dc4da25", documentReference);
         ExtendedURL extendedURL1 = new ExtendedURL(Arrays.asList(
-            "xwiki", "tmp", "formula", "190ef2f68e7fbd75c869d74dea959b1a48faadefc7a0c9219e3e94d005821935"));
+            "xwiki", "tmp", "formula", "fc0da834ab64c463bd3c123f828dd168b253833d9c7ba1ac2d928d083dc4da25"));
         when(mockResourceSerializer.serialize(temporaryResourceReference1)).thenReturn(extendedURL1);
 
         TemporaryResourceReference temporaryResourceReference2 = new TemporaryResourceReference("formula",
-            "06fbba0acf130efd9e147fdfe91a943cc4f3e29972c6cd1d972e9aabf0900966", documentReference);
+            "0db3e34976798dd27efe5933568c2f40e1a2e7933b301b5aab1c6e8dcd45abd6", documentReference);
         ExtendedURL extendedURL2 = new ExtendedURL(Arrays.asList(
-            "xwiki", "tmp", "formula", "06fbba0acf130efd9e147fdfe91a943cc4f3e29972c6cd1d972e9aabf0900966"));
+            "xwiki", "tmp", "formula", "0db3e34976798dd27efe5933568c2f40e1a2e7933b301b5aab1c6e8dcd45abd6"));
         when(mockResourceSerializer.serialize(temporaryResourceReference2)).thenReturn(extendedURL2);
 
+        // Configuration of the renderers (render executor, etc.)
+        MemoryConfigurationSource configurationSource = componentManager.registerMemoryConfigurationSource();
+        // Don't look for the images stored under the identifiers used before 14.9
+        configurationSource.setProperty("macro.formula.storage.migrateLegacyImages", false);
+
         // Image Storage Mock
         this.mockImageStorage = componentManager.registerMockComponent(ImageStorage.class);
 
@@ -96,7 +102,7 @@ public class IntegrationTests implements RenderingTests
         when(this.mockConfiguration.getRenderer()).thenReturn("snuggletex");
         when(this.mockConfiguration.getDefaultType()).thenReturn(FormulaRenderer.Type.DEFAULT);
         when(this.mockConfiguration.getDefaultFontSize()).thenReturn(FormulaRenderer.FontSize.DEFAULT);
-        when(this.mockImageStorage.get(any(String.class))).thenReturn(null);
+        when(this.mockImageStorage.exists(any(String.class))).thenReturn(false);
 
         // Wiki Descriptor Manager (drawn by "default" ResourceReferenceSerializer)
         WikiDescriptorManager wikiDescriptorManager =
@@ -109,6 +115,7 @@ public class IntegrationTests implements RenderingTests
     {
         verify(this.mockConfiguration, times(1)).getRenderer();
         verify(this.mockConfiguration, times(1)).getDefaultType();
-        verify(this.mockImageStorage, times(1)).get(any(String.class));
+        // Checked before rendering, and again once the rendering is registered
+        verify(this.mockImageStorage, times(2)).exists(any(String.class));
     }
 }
\ No newline at end of file
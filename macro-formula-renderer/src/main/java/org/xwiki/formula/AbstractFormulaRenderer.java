@@ -20,13 +20,29 @@
 package org.xwiki.formula;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.formula.internal.FormulaCanonicalizer;
+import org.xwiki.formula.internal.SVGOptimizer;
 
 /**
  * Base class for all implementations of the {@link FormulaRenderer} component. Provides all the common functionalities
@@ -41,29 +57,293 @@ public abstract class AbstractFormulaRenderer implements FormulaRenderer
     /** Logging helper object. */
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractFormulaRenderer.class);
 
+    /** The maximum number of seconds to wait for another thread that is already rendering the same formula. */
+    private static final long RENDER_WAIT_TIMEOUT = 120;
+
+    /** The version of the scheme used to compute the image identifiers, to change when the scheme changes. */
+    private static final byte KEY_VERSION = 3;
+
+    /** The characters used to encode the image identifiers. */
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /** The digests used to compute the image identifiers, reused by each thread. */
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every implementation of the Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    });
+
     /** A storage system for rendered images, for reuse in subsequent requests. */
     @Inject
     private ImageStorage storage;
 
+    /** Runs the asynchronous renderings. */
+    @Inject
+    private FormulaRenderExecutor executor;
+
+    @Inject
+    private FormulaRendererConfiguration configuration;
+
+    /** The encoded {@link #getRendererIdentity() identity} of the renderer, computed when first needed. */
+    private volatile byte[] rendererIdentity;
+
+    /**
+     * The renderings currently in progress, indexed by image identifier, so that concurrent requests for the same
+     * formula wait for the thread already rendering it instead of starting the same rendering again.
+     */
+    private final ConcurrentMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
     @Override
     public String process(String formula, boolean inline, FontSize size, Type type) throws IllegalArgumentException,
         IOException
     {
         // Only render the image if it is not already in the store
         String imageId = computeImageID(formula, inline, size, type);
-        if (this.storage.get(imageId) == null) {
-            ImageData image = renderImage(formula, inline, size, type);
-            this.storage.put(imageId, image);
+        if (!this.storage.exists(imageId)) {
+            CompletableFuture<Void> rendering = new CompletableFuture<>();
+            CompletableFuture<Void> existing = this.inFlight.putIfAbsent(imageId, rendering);
+            if (existing == null) {
+                render(imageId, new FormulaRequest(formula, inline, size, type), rendering);
+            } else {
+                waitForRendering(imageId, existing);
+            }
         }
         return imageId;
     }
 
+    @Override
+    public String getImageId(String formula, boolean inline, FontSize size, Type type)
+    {
+        return computeImageID(formula, inline, size, type);
+    }
+
+    @Override
+    public ImageData renderImage(FormulaRequest request) throws IllegalArgumentException, IOException
+    {
+        return renderImage(request.getFormula(), request.isInline(), request.getSize(), request.getType());
+    }
+
+    @Override
+    public CompletableFuture<String> processAsync(String formula, boolean inline, FontSize size, Type type)
+    {
+        // Don't switch threads when the image is already available or being rendered
+        String imageId = computeImageID(formula, inline, size, type);
+        if (this.storage.exists(imageId)) {
+            return CompletableFuture.completedFuture(imageId);
+        }
+        CompletableFuture<Void> existing = this.inFlight.get(imageId);
+        if (existing != null) {
+            return existing.thenApply(result -> imageId);
+        }
+        return this.executor.submit(() -> process(formula, inline, size, type));
+    }
+
+    @Override
+    public List<String> processAll(List<FormulaRequest> requests) throws IllegalArgumentException, IOException
+    {
+        List<String> imageIds = new ArrayList<>(requests.size());
+        Map<String, FormulaRequest> missing = new LinkedHashMap<>();
+        for (FormulaRequest request : requests) {
+            String imageId =
+                computeImageID(request.getFormula(), request.isInline(), request.getSize(), request.getType());
+            imageIds.add(imageId);
+            if (!missing.containsKey(imageId) && !this.storage.exists(imageId)) {
+                missing.put(imageId, request);
+            }
+        }
+
+        // Render ourselves the images that are not already being rendered by another thread
+        Map<String, CompletableFuture<Void>> claimed = new LinkedHashMap<>();
+        Map<String, CompletableFuture<Void>> existing = new LinkedHashMap<>();
+        for (String imageId : missing.keySet()) {
+            CompletableFuture<Void> rendering = new CompletableFuture<>();
+            CompletableFuture<Void> other = this.inFlight.putIfAbsent(imageId, rendering);
+            if (other == null) {
+                claimed.put(imageId, rendering);
+            } else {
+                existing.put(imageId, other);
+            }
+        }
+        renderAll(missing, claimed);
+
+        for (Map.Entry<String, CompletableFuture<Void>> entry : existing.entrySet()) {
+            waitForRendering(entry.getKey(), entry.getValue());
+        }
+        return imageIds;
+    }
+
     @Override
     public ImageData getImage(String imageID)
     {
         return this.storage.get(imageID);
     }
 
+    /**
+     * Renders and stores the image for a formula, notifying the threads waiting for it.
+     *
+     * @param imageId the identifier of the image
+     * @param request the formula to render
+     * @param rendering the rendering registered for the image, completed when this method returns
+     * @throws IllegalArgumentException if the LaTeX syntax of the formula is incorrect and the error is unrecoverable
+     * @throws IOException in case of a renderer execution error
+     */
+    private void render(String imageId, FormulaRequest request, CompletableFuture<Void> rendering)
+        throws IllegalArgumentException, IOException
+    {
+        try {
+            // The image might have been stored by another thread between the check done by the caller and the moment
+            // the rendering was registered
+            if (!this.storage.exists(imageId)) {
+                ImageData image = getLegacyImage(request);
+                if (image == null) {
+                    image = optimize(
+                        renderImage(request.getFormula(), request.isInline(), request.getSize(), request.getType()));
+                }
+                this.storage.put(imageId, image);
+            }
+            rendering.complete(null);
+        } catch (IOException | RuntimeException e) {
+            rendering.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.inFlight.remove(imageId, rendering);
+        }
+    }
+
+    /**
+     * Renders and stores the images for a batch of formulae, falling back on rendering them one by one if the batch
+     * rendering fails, so that an invalid formula doesn't prevent the others from being rendered.
+     *
+     * @param requests the formulae that are missing from the storage, indexed by image identifier
+     * @param claimed the renderings registered by the current thread, indexed by image identifier
+     * @throws IllegalArgumentException if the LaTeX syntax of one of the formulae is incorrect
+     * @throws IOException in case of a renderer execution error
+     */
+    private void renderAll(Map<String, FormulaRequest> requests, Map<String, CompletableFuture<Void>> claimed)
+        throws IllegalArgumentException, IOException
+    {
+        Map<String, ImageData> images = Collections.emptyMap();
+        if (claimed.size() > 1) {
+            Map<String, FormulaRequest> batch = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<Void>> entry : claimed.entrySet()) {
+                String imageId = entry.getKey();
+                ImageData legacyImage = getLegacyImage(requests.get(imageId));
+                if (legacyImage != null) {
+                    store(imageId, legacyImage, entry.getValue());
+                } else if (!this.storage.exists(imageId)) {
+                    batch.put(imageId, requests.get(imageId));
+                }
+            }
+            try {
+                images = renderImages(batch);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Failed to render a batch of [{}] formulae, rendering them one by one", batch.size(), e);
+            }
+        }
+
+        Exception failure = null;
+        for (Map.Entry<String, CompletableFuture<Void>> entry : claimed.entrySet()) {
+            String imageId = entry.getKey();
+            ImageData image = images.get(imageId);
+            if (entry.getValue().isDone()) {
+                // Already migrated from the previous identifier
+                continue;
+            }
+            try {
+                if (image != null) {
+                    store(imageId, optimize(image), entry.getValue());
+                } else {
+                    render(imageId, requests.get(imageId), entry.getValue());
+                }
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+    /**
+     * Stores an already rendered image, notifying the threads waiting for it.
+     *
+     * @param imageId the identifier of the image
+     * @param image the rendered image
+     * @param rendering the rendering registered for the image, completed when this method returns
+     */
+    private void store(String imageId, ImageData image, CompletableFuture<Void> rendering)
+    {
+        try {
+            this.storage.put(imageId, image);
+            rendering.complete(null);
+        } catch (RuntimeException e) {
+            rendering.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.inFlight.remove(imageId, rendering);
+        }
+    }
+
+    /**
+     * Optimizes the SVG images before they are stored, if enabled. The original image is kept if the optimization
+     * fails.
+     *
+     * @param image the rendered image
+     * @return the image to store
+     */
+    private ImageData optimize(ImageData image)
+    {
+        if (image.getType() == Type.SVG && this.configuration.isSVGOptimization()) {
+            try {
+                return new ImageData(SVGOptimizer.optimize(image.getData(), this.configuration.getSVGPrecision()),
+                    image.getType());
+            } catch (IOException e) {
+                LOGGER.warn("Failed to optimize the SVG image, storing it as is", e);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Waits for a rendering started by another thread to finish, propagating its failure if any.
+     *
+     * @param imageId the identifier of the image being rendered
+     * @param rendering the rendering in progress
+     * @throws IllegalArgumentException if the other thread failed because the formula is invalid
+     * @throws IOException if the other thread failed to render the formula or if the wait times out
+     */
+    private void waitForRendering(String imageId, CompletableFuture<Void> rendering)
+        throws IllegalArgumentException, IOException
+    {
+        try {
+            rendering.get(RENDER_WAIT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                String.format("Interrupted while waiting for the rendering of image [%s]", imageId));
+        } catch (TimeoutException e) {
+            throw new FormulaRenderTimeoutException(
+                String.format("Timed out while waiting for the rendering of image [%s]", imageId), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalArgumentException) {
+                throw new IllegalArgumentException(cause.getMessage(), cause);
+            } else if (cause instanceof FormulaRenderTimeoutException) {
+                throw new FormulaRenderTimeoutException(
+                    String.format("The rendering of image [%s] timed out", imageId), cause);
+            }
+            throw new IOException(String.format("Failed to render image [%s]", imageId), cause);
+        }
+    }
+
     /**
      * Renders a mathematical formula into an image.
      * 
@@ -80,7 +360,28 @@ public abstract class AbstractFormulaRenderer implements FormulaRenderer
         throws IllegalArgumentException, IOException;
 
     /**
-     * Computes the identifier under which the rendered formula will be stored for later reuse.
+     * Renders several mathematical formulae into images. Renderers can override this in order to share the fixed costs
+     * of a rendering (starting a process, loading a preamble, opening a connection, etc.) between all the formulae of a
+     * batch. The default implementation doesn't render anything, so the formulae are rendered one by one using
+     * {@link #renderImage(String, boolean, FontSize, Type)}.
+     *
+     * @param requests the formulae to render, indexed by the identifier of the image to produce
+     * @return the rendered images, indexed by identifier; formulae missing from the result are rendered one by one
+     * @throws IllegalArgumentException if the LaTeX syntax of one of the formulae is incorrect
+     * @throws IOException in case of a renderer execution error
+     * @since 14.9
+     */
+    protected Map<String, ImageData> renderImages(Map<String, FormulaRequest> requests)
+        throws IllegalArgumentException, IOException
+    {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Computes the identifier under which the rendered formula will be stored for later reuse. The identifier depends
+     * on the {@link #getRendererIdentity() renderer}, so that changing the renderer doesn't display the images of the
+     * previous one, and on the {@link #canonicalizeFormula(String) canonical form} of the formula, so that formulae
+     * written differently but rendered the same share the same image.
      * 
      * @param formula a string representation of the formula, in LaTeX syntax, without any commands that specify the
      *            environment (such as $$ .. $$, \begin{math} ... \end{math}, etc)
@@ -91,28 +392,36 @@ public abstract class AbstractFormulaRenderer implements FormulaRenderer
      */
     protected String computeImageID(String formula, boolean inline, FontSize size, Type type)
     {
-        // Try computing a long hash
-        try {
-            MessageDigest hashAlgorithm = MessageDigest.getInstance("SHA-256");
-            hashAlgorithm.update(inline ? (byte) 't' : (byte) 'f');
-            hashAlgorithm.update((byte) size.ordinal());
-            hashAlgorithm.update((byte) type.ordinal());
-            hashAlgorithm.update(formula.getBytes());
-            return String.valueOf(org.apache.commons.codec.binary.Hex.encodeHex(hashAlgorithm.digest()));
-        } catch (NoSuchAlgorithmException ex) {
-            LOGGER.error("No MD5 hash algorithm implementation", ex);
-        } catch (NullPointerException ex) {
-            LOGGER.error("Error hashing image name", ex);
-        }
-        // Fallback to a simple hashcode
-        final int prime = 37;
-        int result = 1;
-        result = prime * result + formula.hashCode();
-        result = prime * result + (inline ? 0 : 1);
-        result = prime * result + size.hashCode();
-        result = prime * result + type.hashCode();
-        result = prime * result + this.getClass().getCanonicalName().hashCode();
-        return result + "";
+        byte[] identity = this.rendererIdentity;
+        if (identity == null) {
+            identity = getRendererIdentity().getBytes(StandardCharsets.UTF_8);
+            this.rendererIdentity = identity;
+        }
+
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(KEY_VERSION);
+        digest.update(identity);
+        digest.update((byte) 0);
+        digest.update(inline ? (byte) 't' : (byte) 'f');
+        digest.update((byte) size.ordinal());
+        digest.update((byte) type.ordinal());
+        digest.update(canonicalizeFormula(formula).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Rewrites the formula in a canonical form, used to compute its image identifier. The canonical form must always be
+     * rendered exactly like the formula itself. By default only the line endings are normalized, since renderers don't
+     * all ignore the whitespace like TeX does.
+     *
+     * @param formula the formula to canonicalize
+     * @return the canonical form of the formula
+     * @since 14.9
+     */
+    protected String canonicalizeFormula(String formula)
+    {
+        return FormulaCanonicalizer.normalizeLineEndings(formula);
     }
 
     /**
@@ -129,4 +438,60 @@ public abstract class AbstractFormulaRenderer implements FormulaRenderer
         return (inline ? "\\begin{math}" : "\\begin{displaymath}") + "\n{ " + formula + " }\n"
             + (inline ? "\\end{math}" : "\\end{displaymath}");
     }
+
+    /**
+     * Identifies the renderer and everything that changes the images it produces (preamble, resolution, etc.). The
+     * identity is part of the image identifiers, so renderers should change it whenever they render formulae
+     * differently, in order to not display the images rendered previously.
+     *
+     * @return the identity of the renderer, the class name by default
+     * @since 14.9
+     */
+    protected String getRendererIdentity()
+    {
+        return getClass().getName();
+    }
+
+    /**
+     * Computes the identifier under which the images were stored before the identifiers included the renderer.
+     *
+     * @param request the rendered formula
+     * @return the previous identifier of the image of the formula
+     */
+    private String computeLegacyImageID(FormulaRequest request)
+    {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(request.isInline() ? (byte) 't' : (byte) 'f');
+        digest.update((byte) request.getSize().ordinal());
+        digest.update((byte) request.getType().ordinal());
+        digest.update(request.getFormula().getBytes(Charset.defaultCharset()));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Looks for the image of a formula stored under its previous identifier, so that the formulae rendered before the
+     * change of identifiers are not rendered again.
+     *
+     * @param request the formula to render
+     * @return the image stored under the previous identifier of the formula, or {@code null} if there's none
+     */
+    private ImageData getLegacyImage(FormulaRequest request)
+    {
+        if (!this.configuration.isLegacyImageMigration()) {
+            return null;
+        }
+        String legacyImageId = computeLegacyImageID(request);
+        return this.storage.exists(legacyImageId) ? this.storage.get(legacyImageId) : null;
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        byte[] hex = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex, StandardCharsets.US_ASCII);
+    }
 }
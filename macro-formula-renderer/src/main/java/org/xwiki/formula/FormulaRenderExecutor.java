@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Runs the asynchronous formula renderings, each one in a clone of the execution context of the thread that requested
+ * the rendering.
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+@Role
+public interface FormulaRenderExecutor
+{
+    /**
+     * Runs a task asynchronously, in a clone of the current execution context.
+     *
+     * @param <T> the type of result of the task
+     * @param task the task to run
+     * @return the result of the task
+     */
+    <T> CompletableFuture<T> submit(Callable<T> task);
+}
@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a formula is not rendered in the allowed time, in which case the rendering is aborted.
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+public class FormulaRenderTimeoutException extends IOException
+{
+    /** Unique version number used for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message the description of the rendering that timed out
+     */
+    public FormulaRenderTimeoutException(String message)
+    {
+        super(message);
+    }
+
+    /**
+     * @param message the description of the rendering that timed out
+     * @param cause the cause of the timeout
+     */
+    public FormulaRenderTimeoutException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
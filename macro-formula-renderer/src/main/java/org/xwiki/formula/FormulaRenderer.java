@@ -20,6 +20,9 @@
 package org.xwiki.formula;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.xwiki.component.annotation.Role;
 
@@ -52,7 +55,15 @@ public interface FormulaRenderer
         JPEG(".jpg", "image/jpeg"),
 
         /** XML-based vector image format created by the W3C as an open format. */
-        SVG(".svg", "image/svg+xml");
+        SVG(".svg", "image/svg+xml"),
+
+        /**
+         * Mathematical Markup Language, displayed natively by the browsers. The rendered data is the MathML markup,
+         * encoded in UTF-8, which is meant to be embedded in the page instead of being stored as an image.
+         *
+         * @since 14.9
+         */
+        MATHML(".mml", "application/mathml+xml");
 
         /** The default rendered image format. */
         public static final Type DEFAULT = PNG;
@@ -193,6 +204,87 @@ public interface FormulaRenderer
     String process(String formula, boolean inline, FontSize size, Type type) throws IllegalArgumentException,
         IOException;
 
+    /**
+     * Computes the identifier under which the image of a formula is stored, without rendering it.
+     *
+     * @param formula the mathematical formula to render, in LaTeX format, <em>without</em> the surrounding math-mode
+     *            commands ($, begin{math}, etc.)
+     * @param inline whether the formula appears inline inside the text, or as a standalone block
+     * @param size the font size to use for the text
+     * @param type the type of image to generate
+     * @return the identifier that {@link #process(String, boolean, FontSize, Type)} returns for the same formula, or
+     *         {@code null} if the renderer can't compute it without rendering the formula
+     * @since 14.9
+     */
+    default String getImageId(String formula, boolean inline, FontSize size, Type type)
+    {
+        return null;
+    }
+
+    /**
+     * Asynchronous version of {@link #process(String, boolean, FontSize, Type)}, which lets the caller start several
+     * renderings and wait for all of them, instead of blocking on each one. The default implementation renders the
+     * formula in the calling thread.
+     *
+     * @param formula the mathematical formula to render, in LaTeX format, <em>without</em> the surrounding math-mode
+     *            commands ($, begin{math}, etc.)
+     * @param inline whether the formula appears inline inside the text, or as a standalone block
+     * @param size the font size to use for the text
+     * @param type The type of image to generate. See the {@link Type} enum for supported types. <em>Not all renderers
+     *            support all types</em>.
+     * @return the identifier which can be used for retrieving the image from the {@link ImageStorage storage}, or the
+     *         rendering failure ({@link IllegalArgumentException} if the LaTeX syntax of the formula is incorrect,
+     *         {@link IOException} in case of a renderer execution error)
+     * @since 14.9
+     */
+    default CompletableFuture<String> processAsync(String formula, boolean inline, FontSize size, Type type)
+    {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            result.complete(process(formula, inline, size, type));
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Generates the images (if not already generated) for several formulae at once, stores them, and returns the keys
+     * which can be used for retrieving them in a subsequent request. Renderers can override this in order to share the
+     * fixed costs of a rendering between all the formulae of a batch.
+     *
+     * @param requests the formulae to render, along with their rendering parameters
+     * @return the identifiers which can be used for retrieving the images from the {@link ImageStorage storage}, in
+     *         the same order as the passed requests
+     * @throws IllegalArgumentException if the LaTeX syntax of one of the formulae is incorrect and the error is
+     *             unrecoverable
+     * @throws IOException in case of a renderer execution error
+     * @since 14.9
+     */
+    default List<String> processAll(List<FormulaRequest> requests) throws IllegalArgumentException, IOException
+    {
+        List<String> imageIds = new ArrayList<>(requests.size());
+        for (FormulaRequest request : requests) {
+            imageIds.add(process(request.getFormula(), request.isInline(), request.getSize(), request.getType()));
+        }
+        return imageIds;
+    }
+
+    /**
+     * Renders a formula without storing its image, for callers that decide where the image is stored. The default
+     * implementation goes through {@link #process(String, boolean, FontSize, Type)}, so the image is stored anyway.
+     *
+     * @param request the formula to render, along with its rendering parameters
+     * @return the image of the formula
+     * @throws IllegalArgumentException if the LaTeX syntax of the formula is incorrect and the error is unrecoverable
+     * @throws IOException in case of a renderer execution error
+     * @since 14.9
+     */
+    default ImageData renderImage(FormulaRequest request) throws IllegalArgumentException, IOException
+    {
+        return getImage(process(request.getFormula(), request.isInline(), request.getSize(), request.getType()));
+    }
+
     /**
      * Retrieve the image data from the storage.
      * 
@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Configuration options for the formula renderers and the image storage. The values can be overridden in XWiki's
+ * global configuration file using the "macro.formula" prefix followed by the property name, for example:
+ * <code>macro.formula.cache.maxEntries = 0</code>.
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+@Role
+public interface FormulaRendererConfiguration
+{
+    /**
+     * @return the hint of the {@link org.xwiki.formula.ImageStorage} component in which the rendered images are
+     *         persisted, behind the in-memory image cache
+     */
+    String getStorage();
+
+    /**
+     * @return {@code true} if the images are stored once per wiki, shared by all the documents displaying the same
+     *         formula, {@code false} if each document stores its own images
+     */
+    boolean isSharedStorage();
+
+    /**
+     * Since the identifiers computed before version 14.9 didn't depend on the renderer, the reused images may have been
+     * produced by another renderer than the current one, so this should only be enabled on the wikis that always used
+     * the same renderer.
+     *
+     * @return {@code true} if the images stored under the identifiers computed before version 14.9 are reused instead
+     *         of rendering the formulae again, {@code false} (the default) to render them again
+     */
+    boolean isLegacyImageMigration();
+
+    /**
+     * The memory used by the in-memory cache is bounded by this number of images times the
+     * {@link #getCacheMaxEntrySize() maximum size of an image}.
+     *
+     * @return the maximum number of images kept in memory, {@code 0} to disable the in-memory cache
+     */
+    int getCacheMaxEntries();
+
+    /**
+     * @return the maximum number of bytes of a single image kept in memory; bigger images are always read from the
+     *         storage
+     */
+    int getCacheMaxEntrySize();
+
+    /**
+     * @return the number of seconds after which an image is removed from the in-memory cache, {@code 0} for no limit
+     */
+    int getCacheLifespan();
+
+    /**
+     * @return the maximum number of formulae rendered asynchronously at the same time, by default the number of
+     *         available processors
+     */
+    int getRenderThreads();
+
+    /**
+     * @return the maximum number of asynchronous renderings waiting for a render thread; when the queue is full the
+     *         formula is rendered by the calling thread
+     */
+    int getRenderQueueSize();
+
+    /**
+     * @return the maximum number of external processes run at the same time by the native renderer, by default the
+     *         number of available processors
+     */
+    int getNativeMaxProcesses();
+
+    /**
+     * @return the maximum number of native renderings waiting for a process slot; when there are more the rendering
+     *         fails right away, so that the formula is rendered by the safe renderer
+     */
+    int getNativeMaxWaiting();
+
+    /**
+     * @return the maximum number of seconds each external command of the native renderer can run before being killed,
+     *         {@code 0} for no limit
+     */
+    int getNativeCommandTimeout();
+
+    /**
+     * @return the maximum number of seconds the native renderer can spend on a rendering, waiting for process slots and
+     *         running all the external commands, {@code 0} for no limit
+     */
+    int getNativeRenderTimeout();
+
+    /**
+     * @return the directory in which the native renderer compiles the formulae, ideally on a RAM drive/tmpfs, or
+     *         {@code null} to use the "formulae" sub-directory of the temporary directory
+     */
+    String getNativeWorkDirectory();
+
+    /**
+     * @return {@code true} if the SVG images are optimized before being stored, removing the comments and metadata and
+     *         reducing the precision of the coordinates
+     */
+    boolean isSVGOptimization();
+
+    /**
+     * @return the number of decimals kept in the coordinates of the optimized SVG images
+     * @see #isSVGOptimization()
+     */
+    int getSVGPrecision();
+
+    /**
+     * @return {@code true} if a gzip compressed copy of the SVG images is stored along with them, sent as is to the
+     *         browsers that accept it instead of compressing the images on each request
+     */
+    boolean isSVGPrecompression();
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.xwiki.formula.FormulaRenderer.FontSize;
+import org.xwiki.formula.FormulaRenderer.Type;
+
+/**
+ * A formula to render, along with the parameters of the rendering.
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+public class FormulaRequest implements Serializable
+{
+    /** Unique version number used for serialization. */
+    private static final long serialVersionUID = 1L;
+
+    /** The mathematical formula to render, in LaTeX format. */
+    private final String formula;
+
+    /** Whether the formula appears inline inside the text, or as a standalone block. */
+    private final boolean inline;
+
+    /** The font size to use for the text. */
+    private final FontSize size;
+
+    /** The type of image to generate. */
+    private final Type type;
+
+    /**
+     * Creates a new request.
+     *
+     * @param formula the mathematical formula to render, in LaTeX format, <em>without</em> the surrounding math-mode
+     *            commands ($, begin{math}, etc.)
+     * @param inline whether the formula appears inline inside the text, or as a standalone block
+     * @param size the font size to use for the text
+     * @param type the type of image to generate
+     */
+    public FormulaRequest(String formula, boolean inline, FontSize size, Type type)
+    {
+        this.formula = formula;
+        this.inline = inline;
+        this.size = size;
+        this.type = type;
+    }
+
+    /**
+     * @return the mathematical formula to render, in LaTeX format
+     */
+    public String getFormula()
+    {
+        return this.formula;
+    }
+
+    /**
+     * @return whether the formula appears inline inside the text, or as a standalone block
+     */
+    public boolean isInline()
+    {
+        return this.inline;
+    }
+
+    /**
+     * @return the font size to use for the text
+     */
+    public FontSize getSize()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return the type of image to generate
+     */
+    public Type getType()
+    {
+        return this.type;
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        if (this == object) {
+            return true;
+        }
+        if (object == null || getClass() != object.getClass()) {
+            return false;
+        }
+        FormulaRequest other = (FormulaRequest) object;
+        return new EqualsBuilder().append(this.formula, other.formula).append(this.inline, other.inline)
+            .append(this.size, other.size).append(this.type, other.type).isEquals();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return new HashCodeBuilder(17, 37).append(this.formula).append(this.inline).append(this.size)
+            .append(this.type).toHashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this).append("formula", this.formula).append("inline", this.inline)
+            .append("size", this.size).append("type", this.type).toString();
+    }
+}
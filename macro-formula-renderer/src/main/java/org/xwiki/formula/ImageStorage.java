@@ -37,6 +37,18 @@ public interface ImageStorage
      */
     ImageData get(String id);
 
+    /**
+     * Check if an image is stored under the given identifier, without loading it.
+     *
+     * @param id the identifier of the data in the storage
+     * @return {@code true} if an image is stored under this identifier, {@code false} otherwise
+     * @since 14.9
+     */
+    default boolean exists(String id)
+    {
+        return get(id) != null;
+    }
+
     /**
      * Store the image under the given identifier.
      * 
@@ -0,0 +1,262 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.event.CacheEntryListener;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.formula.FormulaRendererConfiguration;
+import org.xwiki.formula.ImageData;
+import org.xwiki.formula.ImageStorage;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * Default {@link ImageStorage} implementation, keeping the most recently used images in memory in front of the
+ * configured storage (the {@link TemporaryImageStorage temporary storage} by default), so that the images of the most
+ * viewed formulae are served without accessing the disk.
+ * <p>
+ * The cache is bounded by its number of entries, and only the images smaller than the configured maximum entry size are
+ * kept in memory, so the memory used never exceeds the product of the two settings.
+ * </p>
+ * <p>
+ * The images found in memory are reported as existing without checking the storage. The formula resource handler
+ * serves them from memory when their file has been removed in the meantime.
+ * </p>
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+@Component
+@Singleton
+public class CachingImageStorage implements ImageStorage, Initializable, Disposable
+{
+    /** The identifier of the cache configuration. */
+    private static final String CACHE_ID = "formula.images";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private FormulaRendererConfiguration configuration;
+
+    @Inject
+    private ComponentManager componentManager;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private TemporaryResourceReferenceProvider resourceReferenceProvider;
+
+    @Inject
+    private EntityReferenceSerializer<String> entityReferenceSerializer;
+
+    /** The storage in which the images are persisted. */
+    private ImageStorage storage;
+
+    /** The in-memory images, {@code null} if the cache is disabled. */
+    private Cache<ImageData> cache;
+
+    /** The maximum size of an image kept in memory. */
+    private int maxEntrySize;
+
+    /** The number of bytes currently held by the cache. */
+    private final AtomicLong size = new AtomicLong();
+
+    /** The number of lookups served from memory. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of lookups that had to go to the storage. */
+    private final AtomicLong misses = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String storageHint = this.configuration.getStorage();
+        try {
+            this.storage = this.componentManager.getInstance(ImageStorage.class, storageHint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(
+                String.format("Failed to find the formula image storage [%s]", storageHint), e);
+        }
+
+        int maxEntries = this.configuration.getCacheMaxEntries();
+        this.maxEntrySize = this.configuration.getCacheMaxEntrySize();
+        if (maxEntries <= 0 || this.maxEntrySize <= 0) {
+            return;
+        }
+
+        LRUCacheConfiguration cacheConfiguration = new LRUCacheConfiguration(CACHE_ID, maxEntries);
+        cacheConfiguration.getLRUEvictionConfiguration().setLifespan(this.configuration.getCacheLifespan());
+        try {
+            this.cache = this.cacheManager.createNewCache(cacheConfiguration);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the formula image cache", e);
+        }
+        this.cache.addCacheEntryListener(new SizeListener());
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.cache != null) {
+            this.cache.dispose();
+        }
+    }
+
+    @Override
+    public ImageData get(String id)
+    {
+        if (this.cache == null || StringUtils.isEmpty(id)) {
+            return this.storage.get(id);
+        }
+
+        String key = getCacheKey(id);
+        ImageData data = this.cache.get(key);
+        if (data != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+            data = this.storage.get(id);
+            if (data != null) {
+                cache(key, data);
+            } else {
+                // Don't keep reporting as existing an image that was put in the meantime but can't be read back
+                this.cache.remove(key);
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public boolean exists(String id)
+    {
+        if (this.cache == null || StringUtils.isEmpty(id)) {
+            return this.storage.exists(id);
+        }
+
+        if (this.cache.get(getCacheKey(id)) != null) {
+            this.hits.incrementAndGet();
+            return true;
+        }
+        // Don't load the image here, it will be cached when it's actually requested
+        this.misses.incrementAndGet();
+        return this.storage.exists(id);
+    }
+
+    @Override
+    public void put(String id, ImageData data)
+    {
+        this.storage.put(id, data);
+        if (this.cache != null && StringUtils.isNotEmpty(id)) {
+            cache(getCacheKey(id), data);
+        }
+    }
+
+    /**
+     * @return the number of image lookups served from memory since the cache was created
+     */
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of image lookups that had to access the storage since the cache was created
+     */
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of bytes of image data currently kept in memory
+     */
+    public long getSize()
+    {
+        return this.size.get();
+    }
+
+    private void cache(String key, ImageData data)
+    {
+        if (data != null && data.getData() != null && data.getData().length <= this.maxEntrySize) {
+            this.cache.set(key, data);
+        }
+    }
+
+    private String getCacheKey(String id)
+    {
+        // The temporary storage can keep the images of each document separately, so the cache must do the same in
+        // order to not report as stored an image that only exists for another document.
+        return String.format("%s/%s", this.entityReferenceSerializer.serialize(
+            this.resourceReferenceProvider.getImageReference(id).getOwningEntityReference()), id);
+    }
+
+    /**
+     * Keeps track of the number of bytes held by the cache.
+     *
+     * @version $Id$
+     */
+    private final class SizeListener implements CacheEntryListener<ImageData>
+    {
+        @Override
+        public void cacheEntryAdded(CacheEntryEvent<ImageData> event)
+        {
+            CachingImageStorage.this.size.addAndGet(getSize(event));
+        }
+
+        @Override
+        public void cacheEntryRemoved(CacheEntryEvent<ImageData> event)
+        {
+            CachingImageStorage.this.size.addAndGet(-getSize(event));
+            CachingImageStorage.this.logger.debug("Evicted formula image [{}] from the cache ([{}] hits, [{}] misses)",
+                event.getEntry().getKey(), getHitCount(), getMissCount());
+        }
+
+        @Override
+        public void cacheEntryModified(CacheEntryEvent<ImageData> event)
+        {
+            // The previous value is not provided, so the size can't be adjusted. This only happens when the same
+            // image is stored again, which has the same size anyway.
+        }
+
+        private long getSize(CacheEntryEvent<ImageData> event)
+        {
+            ImageData data = event.getEntry().getValue();
+            return data != null && data.getData() != null ? data.getData().length : 0;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.formula.FormulaRenderExecutor;
+import org.xwiki.formula.FormulaRendererConfiguration;
+
+/**
+ * Default implementation of {@link FormulaRenderExecutor}, running the asynchronous formula renderings on a bounded set
+ * of threads (virtual threads when the JVM supports them). When all the threads are busy and the queue is full, the
+ * rendering is done by the requesting thread, which slows down the producers instead of piling up renderings.
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+@Component
+@Singleton
+public class DefaultFormulaRenderExecutor implements FormulaRenderExecutor, Initializable, Disposable
+{
+    /** The prefix of the names of the render threads. */
+    private static final String THREAD_NAME = "formula-render-";
+
+    /** The number of seconds an idle render thread is kept alive. */
+    private static final long KEEP_ALIVE = 60;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private FormulaRendererConfiguration configuration;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /** The actual executor. */
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void initialize()
+    {
+        int threads = Math.max(1, this.configuration.getRenderThreads());
+        int queueSize = Math.max(1, this.configuration.getRenderQueueSize());
+        this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize), createThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public <T> CompletableFuture<T> submit(Callable<T> task)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            ExecutionContext context = cloneContext();
+            if (this.executor.isShutdown()) {
+                throw new RejectedExecutionException("The formula render executor has been disposed");
+            }
+            this.executor.execute(() -> run(task, context, future));
+        } catch (ExecutionContextException | RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private <T> void run(Callable<T> task, ExecutionContext context, CompletableFuture<T> future)
+    {
+        // Push the context instead of setting it since the task is run by the calling thread when the queue is full
+        if (context != null) {
+            this.execution.pushContext(context, false);
+        }
+        try {
+            future.complete(task.call());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        } finally {
+            if (context != null) {
+                this.execution.popContext();
+            }
+        }
+    }
+
+    private ExecutionContext cloneContext() throws ExecutionContextException
+    {
+        ExecutionContext context = this.execution.getContext();
+        return context != null ? this.executionContextManager.clone(context) : null;
+    }
+
+    private ThreadFactory createThreadFactory()
+    {
+        try {
+            // Virtual threads are only available starting with Java 21, which is not the minimal version we support
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            this.logger.debug("Virtual threads are not available, using platform threads to render formulae");
+            return new BasicThreadFactory.Builder().namingPattern(THREAD_NAME + "%d").daemon(true).build();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.formula.FormulaRendererConfiguration;
+
+/**
+ * Default implementation of {@link FormulaRendererConfiguration}, using the {@link ConfigurationSource} component.
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+@Component
+@Singleton
+public class DefaultFormulaRendererConfiguration implements FormulaRendererConfiguration
+{
+    /**
+     * Prefix for configuration keys for this module.
+     */
+    private static final String PREFIX = "macro.formula.";
+
+    /**
+     * Default value for the hint of the storage in which the rendered images are persisted.
+     *
+     * @see #getStorage()
+     */
+    private static final String DEFAULT_STORAGE = "temporary";
+
+    /**
+     * Default value for the maximum number of images kept in the in-memory image cache, using at most 32MB with the
+     * default maximum image size.
+     *
+     * @see #getCacheMaxEntries()
+     */
+    private static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+
+    /**
+     * Default value for the maximum size of an image kept in the in-memory image cache (32KB).
+     *
+     * @see #getCacheMaxEntrySize()
+     */
+    private static final int DEFAULT_CACHE_MAX_ENTRY_SIZE = 32 * 1024;
+
+    /**
+     * Default value for the number of seconds an image is kept in the in-memory image cache (1 hour).
+     *
+     * @see #getCacheLifespan()
+     */
+    private static final int DEFAULT_CACHE_LIFESPAN = 3600;
+
+    /**
+     * Default value for the maximum number of renderings waiting for a render thread.
+     *
+     * @see #getRenderQueueSize()
+     */
+    private static final int DEFAULT_RENDER_QUEUE_SIZE = 1000;
+
+    /**
+     * Default value for the maximum number of native renderings waiting for a process slot.
+     *
+     * @see #getNativeMaxWaiting()
+     */
+    private static final int DEFAULT_NATIVE_MAX_WAITING = 100;
+
+    /**
+     * Default value for the maximum number of seconds a native rendering command can run.
+     *
+     * @see #getNativeCommandTimeout()
+     */
+    private static final int DEFAULT_NATIVE_COMMAND_TIMEOUT = 30;
+
+    /**
+     * Default value for the maximum number of seconds a native rendering can take, all commands included.
+     *
+     * @see #getNativeRenderTimeout()
+     */
+    private static final int DEFAULT_NATIVE_RENDER_TIMEOUT = 60;
+
+    /**
+     * Default value for the number of decimals kept in the coordinates of the optimized SVG images.
+     *
+     * @see #getSVGPrecision()
+     */
+    private static final int DEFAULT_SVG_PRECISION = 3;
+
+    /**
+     * Defines from where to read the rendering configuration data.
+     */
+    @Inject
+    private ConfigurationSource configuration;
+
+    @Override
+    public String getStorage()
+    {
+        return this.configuration.getProperty(PREFIX + "storage", DEFAULT_STORAGE);
+    }
+
+    @Override
+    public boolean isSharedStorage()
+    {
+        return this.configuration.getProperty(PREFIX + "storage.shared", false);
+    }
+
+    @Override
+    public boolean isLegacyImageMigration()
+    {
+        return this.configuration.getProperty(PREFIX + "storage.migrateLegacyImages", false);
+    }
+
+    @Override
+    public int getCacheMaxEntries()
+    {
+        return this.configuration.getProperty(PREFIX + "cache.maxEntries", DEFAULT_CACHE_MAX_ENTRIES);
+    }
+
+    @Override
+    public int getCacheMaxEntrySize()
+    {
+        return this.configuration.getProperty(PREFIX + "cache.maxEntrySize", DEFAULT_CACHE_MAX_ENTRY_SIZE);
+    }
+
+    @Override
+    public int getCacheLifespan()
+    {
+        return this.configuration.getProperty(PREFIX + "cache.lifespan", DEFAULT_CACHE_LIFESPAN);
+    }
+
+    @Override
+    public int getRenderThreads()
+    {
+        return this.configuration.getProperty(PREFIX + "render.threads",
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public int getRenderQueueSize()
+    {
+        return this.configuration.getProperty(PREFIX + "render.queueSize", DEFAULT_RENDER_QUEUE_SIZE);
+    }
+
+    @Override
+    public int getNativeMaxProcesses()
+    {
+        return this.configuration.getProperty(PREFIX + "native.maxProcesses",
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public int getNativeMaxWaiting()
+    {
+        return this.configuration.getProperty(PREFIX + "native.maxWaiting", DEFAULT_NATIVE_MAX_WAITING);
+    }
+
+    @Override
+    public int getNativeCommandTimeout()
+    {
+        return this.configuration.getProperty(PREFIX + "native.commandTimeout", DEFAULT_NATIVE_COMMAND_TIMEOUT);
+    }
+
+    @Override
+    public int getNativeRenderTimeout()
+    {
+        return this.configuration.getProperty(PREFIX + "native.renderTimeout", DEFAULT_NATIVE_RENDER_TIMEOUT);
+    }
+
+    @Override
+    public String getNativeWorkDirectory()
+    {
+        return this.configuration.getProperty(PREFIX + "native.workDirectory", String.class);
+    }
+
+    @Override
+    public boolean isSVGOptimization()
+    {
+        return this.configuration.getProperty(PREFIX + "svg.optimize", true);
+    }
+
+    @Override
+    public int getSVGPrecision()
+    {
+        return this.configuration.getProperty(PREFIX + "svg.precision", DEFAULT_SVG_PRECISION);
+    }
+
+    @Override
+    public boolean isSVGPrecompression()
+    {
+        return this.configuration.getProperty(PREFIX + "svg.precompress", true);
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Rewrites formulae in a canonical form before computing their image identifier, so that formulae written differently
+ * but rendered the same (for example {@code a + b} and {@code a+b}) share the same image.
+ * <p>
+ * Only the changes that can't modify the image rendered by TeX are made: the line endings are normalized, the
+ * whitespace that TeX ignores in math mode is removed, the rest of the whitespace is collapsed, and optionally the
+ * braces surrounding the whole formula are removed. Formulae using a command that is not known to keep the TeX rules
+ * for whitespace (macro definitions, boxes, colors, verbatim text, etc.) only get their line endings normalized.
+ * </p>
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+public final class FormulaCanonicalizer
+{
+    /** The commands whose argument is typeset in text mode, where spaces are collapsed but not ignored. */
+    private static final Set<String> TEXT_COMMANDS = new HashSet<>(Arrays.asList("text", "textrm", "textsf",
+        "texttt", "textnormal", "textbf", "textmd", "textit", "textsl", "textsc", "textup", "emph", "mbox", "tag"));
+
+    /**
+     * The commands typeset in math mode that don't depend on the whitespace around them or in their arguments, and
+     * don't change the state of the document beyond the current group.
+     */
+    private static final Set<String> MATH_COMMANDS = new HashSet<>(Arrays.asList(
+        // Greek letters
+        "alpha", "beta", "gamma", "delta", "epsilon", "varepsilon", "zeta", "eta", "theta", "vartheta", "iota",
+        "kappa", "varkappa", "lambda", "mu", "nu", "xi", "pi", "varpi", "rho", "varrho", "sigma", "varsigma", "tau",
+        "upsilon", "phi", "varphi", "chi", "psi", "omega", "digamma", "Gamma", "Delta", "Theta", "Lambda", "Xi", "Pi",
+        "Sigma", "Upsilon", "Phi", "Psi", "Omega",
+        // Binary operators
+        "pm", "mp", "times", "div", "cdot", "ast", "star", "circ", "bullet", "oplus", "ominus", "otimes", "oslash",
+        "odot", "cap", "cup", "sqcap", "sqcup", "vee", "wedge", "land", "lor", "setminus", "smallsetminus", "wr",
+        "diamond", "bigtriangleup", "bigtriangledown", "triangleleft", "triangleright", "amalg", "dagger", "ddagger",
+        "uplus",
+        // Relations
+        "leq", "le", "geq", "ge", "neq", "ne", "equiv", "sim", "simeq", "approx", "cong", "propto", "prec", "succ",
+        "preceq", "succeq", "ll", "gg", "subset", "supset", "subseteq", "supseteq", "subsetneq", "supsetneq",
+        "sqsubseteq", "sqsupseteq", "in", "ni", "notin", "mid", "nmid", "parallel", "perp", "models", "vdash",
+        "dashv", "smile", "frown", "asymp", "doteq", "bowtie", "leqslant", "geqslant", "lesssim", "gtrsim", "nleq",
+        "ngeq", "not",
+        // Arrows
+        "leftarrow", "rightarrow", "leftrightarrow", "Leftarrow", "Rightarrow", "Leftrightarrow", "longleftarrow",
+        "longrightarrow", "longleftrightarrow", "Longleftarrow", "Longrightarrow", "Longleftrightarrow", "uparrow",
+        "downarrow", "updownarrow", "Uparrow", "Downarrow", "Updownarrow", "mapsto", "longmapsto", "to", "gets",
+        "iff", "implies", "impliedby", "hookleftarrow", "hookrightarrow", "nearrow", "searrow", "swarrow", "nwarrow",
+        "leftharpoonup", "rightharpoonup", "leftharpoondown", "rightharpoondown", "rightleftharpoons",
+        // Other symbols
+        "infty", "partial", "nabla", "forall", "exists", "nexists", "emptyset", "varnothing", "neg", "lnot", "aleph",
+        "hbar", "ell", "wp", "Re", "Im", "prime", "angle", "triangle", "square", "blacksquare", "surd", "top", "bot",
+        "flat", "natural", "sharp", "clubsuit", "diamondsuit", "heartsuit", "spadesuit", "ldots", "cdots", "vdots",
+        "ddots", "dots", "dotsc", "dotsb", "dotsm", "dotsi", "imath", "jmath", "checkmark", "therefore", "because",
+        // Big operators
+        "sum", "prod", "coprod", "int", "iint", "iiint", "oint", "bigcup", "bigcap", "bigsqcup", "bigvee",
+        "bigwedge", "bigoplus", "bigotimes", "bigodot", "biguplus", "limits", "nolimits",
+        // Functions
+        "sin", "cos", "tan", "cot", "sec", "csc", "arcsin", "arccos", "arctan", "sinh", "cosh", "tanh", "coth", "exp",
+        "log", "ln", "lg", "lim", "liminf", "limsup", "sup", "inf", "max", "min", "arg", "det", "dim", "gcd", "hom",
+        "ker", "deg", "Pr", "bmod", "pmod", "mod", "operatorname",
+        // Delimiters
+        "left", "right", "middle", "big", "Big", "bigg", "Bigg", "bigl", "bigr", "Bigl", "Bigr", "biggl", "biggr",
+        "Biggl", "Biggr", "langle", "rangle", "lfloor", "rfloor", "lceil", "rceil", "lvert", "rvert", "lVert",
+        "rVert", "vert", "Vert", "backslash", "lbrace", "rbrace",
+        // Fractions, roots and accents
+        "frac", "dfrac", "tfrac", "cfrac", "binom", "dbinom", "tbinom", "over", "choose", "atop", "sqrt", "hat",
+        "widehat", "tilde", "widetilde", "bar", "overline", "underline", "vec", "overrightarrow", "overleftarrow",
+        "dot", "ddot", "acute", "grave", "breve", "check", "mathring", "overbrace", "underbrace", "stackrel",
+        "overset", "underset", "substack", "boxed", "phantom", "hphantom", "vphantom",
+        // Fonts and styles
+        "mathrm", "mathbf", "mathit", "mathsf", "mathtt", "mathcal", "mathbb", "mathfrak", "boldsymbol", "pmb",
+        "mathop", "mathbin", "mathrel", "mathord", "displaystyle", "textstyle", "scriptstyle", "scriptscriptstyle",
+        // Spacing and arrays
+        "quad", "qquad", "hline", "begin", "end"));
+
+    /** The environments in which the whitespace can be analyzed, i.e. which are typeset in math mode. */
+    private static final Set<String> MATH_ENVIRONMENTS = new HashSet<>(Arrays.asList("array", "matrix", "pmatrix",
+        "bmatrix", "Bmatrix", "vmatrix", "Vmatrix", "smallmatrix", "cases", "aligned", "alignedat", "gathered",
+        "split", "subarray"));
+
+    /** The environment commands. */
+    private static final String BEGIN = "begin";
+
+    private static final String END = "end";
+
+    /** The type of the last token written in the canonical formula. */
+    private enum Token
+    {
+        /** A control word, such as {@code \alpha}. */
+        CONTROL_WORD,
+
+        /** A control symbol, such as {@code \\} or {@code \,}. */
+        CONTROL_SYMBOL,
+
+        /** Any other character. */
+        CHARACTER
+    }
+
+    private FormulaCanonicalizer()
+    {
+        // Utility class
+    }
+
+    /**
+     * @param formula the formula to canonicalize
+     * @param stripBraces {@code true} if the braces surrounding the whole formula can be removed, which is only the
+     *            case when the renderer puts the formula in a group anyway
+     * @return the canonical form of the formula, rendered exactly like the given formula
+     */
+    public static String canonicalize(String formula, boolean stripBraces)
+    {
+        String normalized = normalizeLineEndings(formula);
+        String canonical = collapseWhitespace(normalized);
+        if (canonical == null) {
+            return normalized;
+        }
+        return stripBraces ? stripBraces(canonical) : canonical;
+    }
+
+    /**
+     * @param formula the formula to normalize
+     * @return the formula, with all the line endings replaced by {@code \n}
+     */
+    public static String normalizeLineEndings(String formula)
+    {
+        return formula.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    /**
+     * Checks if a formula can be compiled in the same LaTeX document as other formulae without affecting them: the
+     * formula must only use the known math commands, which don't define anything, and its groups and environments
+     * must be balanced, so that it can't change the state of the document beyond its own group.
+     *
+     * @param formula the formula to check
+     * @return {@code true} if the formula can't affect the formulae compiled after it
+     */
+    public static boolean isSelfContained(String formula)
+    {
+        // A comment at the end of the formula would hide the end of the group it is wrapped in
+        if (formula.indexOf('%') >= 0 || collapseWhitespace(normalizeLineEndings(formula)) == null) {
+            return false;
+        }
+        Deque<String> environments = new ArrayDeque<>();
+        int depth = 0;
+        for (int i = 0; i < formula.length(); i++) {
+            char c = formula.charAt(i);
+            if (c == '\\') {
+                int end = i + 1;
+                while (end < formula.length() && Character.isLetter(formula.charAt(end))) {
+                    end++;
+                }
+                String name = formula.substring(i + 1, end);
+                // The names of the environments have been checked already
+                if (BEGIN.equals(name)) {
+                    environments.push(getEnvironment(formula, end));
+                } else if (END.equals(name) && !getEnvironment(formula, end).equals(environments.poll())) {
+                    return false;
+                }
+                // Skip the escaped character
+                i = Math.max(end - 1, i + 1);
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth < 0) {
+                return false;
+            }
+        }
+        return depth == 0 && environments.isEmpty();
+    }
+
+    /**
+     * @param formula the formula, with normalized line endings
+     * @return the formula without the insignificant whitespace, or {@code null} if the formula contains constructs
+     *         that make the whitespace impossible to analyze
+     */
+    private static String collapseWhitespace(String formula)
+    {
+        int length = formula.length();
+        StringBuilder canonical = new StringBuilder(length);
+        // Whether each enclosing group is typeset in text mode
+        Deque<Boolean> groups = new ArrayDeque<>();
+        boolean text = false;
+        boolean textArgument = false;
+        Token last = Token.CHARACTER;
+        int i = 0;
+        while (i < length) {
+            char c = formula.charAt(i);
+            if (isSpace(c)) {
+                int newLines = 0;
+                for (; i < length && isSpace(formula.charAt(i)); i++) {
+                    if (formula.charAt(i) == '\n') {
+                        newLines++;
+                    }
+                }
+                if (newLines > 1) {
+                    // An empty line ends the paragraph, which is an error in math mode that must be kept
+                    canonical.append("\n\n");
+                } else if (isSignificantSpace(canonical, last, text, i < length ? formula.charAt(i) : 0)) {
+                    canonical.append(' ');
+                }
+                continue;
+            }
+
+            int end = i + 1;
+            if (c == '\\' && end < length) {
+                if (Character.isLetter(formula.charAt(end))) {
+                    while (end < length && Character.isLetter(formula.charAt(end))) {
+                        end++;
+                    }
+                    String name = formula.substring(i + 1, end);
+                    if (!TEXT_COMMANDS.contains(name) && !MATH_COMMANDS.contains(name)
+                        || (BEGIN.equals(name) || END.equals(name))
+                            && !MATH_ENVIRONMENTS.contains(getEnvironment(formula, end))) {
+                        return null;
+                    }
+                    textArgument = TEXT_COMMANDS.contains(name);
+                    last = Token.CONTROL_WORD;
+                } else if (formula.charAt(end) == '(') {
+                    // Math mode inside text mode
+                    return null;
+                } else {
+                    end++;
+                    textArgument = false;
+                    last = Token.CONTROL_SYMBOL;
+                }
+            } else if (c == '$' || c == '^' && formula.startsWith("^", end)) {
+                // Switch to text mode, or character code that could hide a command
+                return null;
+            } else if (c == '%') {
+                // Keep the comments, including the new line that ends them
+                int newLine = formula.indexOf('\n', i);
+                end = newLine < 0 ? length : newLine + 1;
+                last = Token.CHARACTER;
+            } else {
+                if (c == '{') {
+                    groups.push(text);
+                    text = text || textArgument;
+                } else if (c == '}' && !groups.isEmpty()) {
+                    text = groups.pop();
+                }
+                // The starred variant of a text command still takes a text argument
+                textArgument = textArgument && c == '*';
+                last = Token.CHARACTER;
+            }
+            canonical.append(formula, i, end);
+            i = end;
+        }
+        return canonical.toString();
+    }
+
+    private static boolean isSpace(char c)
+    {
+        // The other Unicode spaces are not ignored by TeX
+        return c == ' ' || c == '\t' || c == '\n';
+    }
+
+    private static boolean isSignificantSpace(StringBuilder canonical, Token last, boolean text, char next)
+    {
+        if (canonical.length() == 0 || (next == 0 && !text)) {
+            // The formula is always typeset in math mode
+            return false;
+        } else if (last == Token.CONTROL_WORD) {
+            // TeX ignores the spaces after a control word, but one is needed to end it before a letter
+            return Character.isLetter(next);
+        } else if (text) {
+            return true;
+        } else if (last == Token.CONTROL_SYMBOL) {
+            // Some commands (e.g. \\) look for an optional argument or a star after them
+            return next == '[' || next == '*';
+        }
+        // TeX ignores the spaces in math mode, but other renderers might not do it between numbers or words
+        char previous = canonical.charAt(canonical.length() - 1);
+        return Character.isLetterOrDigit(previous) && Character.isLetterOrDigit(next);
+    }
+
+    /**
+     * @param formula the formula
+     * @param start the position following an environment command
+     * @return the name of the environment, or an empty string if it's not given right after the command
+     */
+    private static String getEnvironment(String formula, int start)
+    {
+        int end = formula.indexOf('}', start);
+        return formula.startsWith("{", start) && end > 0 ? formula.substring(start + 1, end) : "";
+    }
+
+    /**
+     * @param formula the canonical formula
+     * @return the formula without the braces surrounding it, if any
+     */
+    private static String stripBraces(String formula)
+    {
+        String result = formula;
+        while (result.length() > 2 && result.charAt(0) == '{' && isClosedAtEnd(result)) {
+            result = result.substring(1, result.length() - 1);
+        }
+        return result;
+    }
+
+    /**
+     * @param formula a formula starting with an opening brace
+     * @return {@code true} if the first brace of the formula is closed by its last character
+     */
+    private static boolean isClosedAtEnd(String formula)
+    {
+        int depth = 0;
+        for (int i = 0; i < formula.length(); i++) {
+            char c = formula.charAt(i);
+            if (c == '\\') {
+                // Skip the escaped braces
+                i++;
+            } else if (c == '%') {
+                // The closing brace could be commented out
+                return false;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i == formula.length() - 1;
+            }
+        }
+        return false;
+    }
+}
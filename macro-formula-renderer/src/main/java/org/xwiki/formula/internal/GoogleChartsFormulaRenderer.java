@@ -69,6 +69,11 @@ public final class GoogleChartsFormulaRenderer extends AbstractFormulaRenderer i
     protected ImageData renderImage(String formula, boolean inline, FormulaRenderer.FontSize size,
         FormulaRenderer.Type type) throws IllegalArgumentException, IOException
     {
+        if (Type.MATHML.equals(type)) {
+            throw new IllegalArgumentException(String.format("The image type [%s] is not supported by the Google Charts "
+                + "formula renderer.", type.getMimetype()));
+        }
+
         String encodedFormula = URLEncoder.encode(formula, "UTF-8");
         GetMethod method = new GetMethod(SERVICE_BASE_URL + encodedFormula);
         method.setRequestHeader("accept", type.getMimetype());
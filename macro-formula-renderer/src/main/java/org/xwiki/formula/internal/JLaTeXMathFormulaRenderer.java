@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.scilab.forge.jlatexmath.JMathTeXException;
+import org.scilab.forge.jlatexmath.TeXConstants;
+import org.scilab.forge.jlatexmath.TeXFormula;
+import org.scilab.forge.jlatexmath.TeXIcon;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.formula.AbstractFormulaRenderer;
+import org.xwiki.formula.FormulaRenderer;
+import org.xwiki.formula.ImageData;
+
+/**
+ * Implementation of the {@link FormulaRenderer} component, which uses <a
+ * href="https://github.com/opencollab/jlatexmath">JLaTeXMath</a> to parse and lay out the formulae directly in the
+ * JVM. This is a pure-java solution, which neither starts external processes nor goes through MathML, so it's the
+ * fastest renderer, but it only supports the mathematical commands of LaTeX and of the AMS packages.
+ *
+ * @version $Id$
+ * @since 14.9
+ */
+@Component
+@Named("jlatexmath")
+@Singleton
+public class JLaTeXMathFormulaRenderer extends AbstractFormulaRenderer
+{
+    /** The list of image types supported by the renderer. */
+    private static final List<Type> ALLOWED_TYPES = Arrays.asList(Type.JPEG, Type.PNG, Type.GIF);
+
+    /** The space left around the formula, in pixels. */
+    private static final int MARGIN = 2;
+
+    @Override
+    protected ImageData renderImage(String formula, boolean inline, FormulaRenderer.FontSize size,
+        FormulaRenderer.Type type) throws IllegalArgumentException, IOException
+    {
+        if (!ALLOWED_TYPES.contains(type)) {
+            throw new IllegalArgumentException(String.format("The image type [%s] is not supported by the JLaTeXMath "
+                + "formula renderer.", type.getMimetype()));
+        }
+
+        TeXIcon icon;
+        try {
+            icon = new TeXFormula(formula).createTeXIcon(inline ? TeXConstants.STYLE_TEXT : TeXConstants.STYLE_DISPLAY,
+                size.getSize());
+        } catch (JMathTeXException e) {
+            throw new IllegalArgumentException(String.format("Failed to parse the formula [%s]", formula), e);
+        }
+        icon.setInsets(new Insets(MARGIN, MARGIN, MARGIN, MARGIN));
+        icon.setForeground(Color.BLACK);
+
+        // JPEG doesn't support transparency, so the formula is drawn on an opaque background
+        BufferedImage image = new BufferedImage(icon.getIconWidth(), icon.getIconHeight(),
+            Type.JPEG.equals(type) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            if (Type.JPEG.equals(type)) {
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            }
+            icon.paintIcon(null, graphics, 0, 0);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, type.name().toLowerCase(Locale.ROOT), output)) {
+            throw new IOException(String.format("No image writer available for [%s]", type.getMimetype()));
+        }
+        return new ImageData(output.toByteArray(), type);
+    }
+}
@@ -69,7 +69,12 @@ public final class MathTranFormulaRenderer extends AbstractFormulaRenderer imple
     protected ImageData renderImage(String formula, boolean inline, FormulaRenderer.FontSize size,
         FormulaRenderer.Type type) throws IllegalArgumentException, IOException
     {
-        String encodedFormula = URLEncoder.encode((inline ? "" : "\\displaystyle") + formula, "UTF-8");
+        if (Type.MATHML.equals(type)) {
+            throw new IllegalArgumentException(String.format("The image type [%s] is not supported by the MathTran "
+                + "formula renderer.", type.getMimetype()));
+        }
+
+        String encodedFormula = URLEncoder.encode((inline ? "" : "\\displaystyle ") + formula, "UTF-8");
         GetMethod method =
             new GetMethod(MATHTRAN_BASE_URL + "D=" + Math.max(size.ordinal() - 3, 0) + "&tex=" + encodedFormula);
         method.setRequestHeader("accept", type.getMimetype());
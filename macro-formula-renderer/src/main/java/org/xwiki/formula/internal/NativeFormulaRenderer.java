@@ -19,28 +19,62 @@
  */
 package org.xwiki.formula.internal;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Vector;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.imageio.ImageIO;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.NullOutputStream;
-import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.environment.Environment;
 import org.xwiki.formula.AbstractFormulaRenderer;
+import org.xwiki.formula.FormulaRenderTimeoutException;
 import org.xwiki.formula.FormulaRenderer;
+import org.xwiki.formula.FormulaRendererConfiguration;
+import org.xwiki.formula.FormulaRequest;
 import org.xwiki.formula.ImageData;
 
 /**
@@ -51,13 +85,19 @@ import org.xwiki.formula.ImageData;
  * Required commands:
  * <ul>
  *     <li>latex</li>
- *     <li>dvips and convert (ImageMagick) when building a PNG, JPEG or GIF image</li>
+ *     <li>dvipng, or dvips and convert (ImageMagick), when building a PNG, JPEG or GIF image</li>
  *     <li>dvisvgm when building an SVG image</li>
  * </ul>
  * </p>
  * <p>
+ * The fixed preamble (document class and packages) is compiled once into a LaTeX format, which is then loaded by each
+ * latex process instead of parsing the packages again. The full preamble is used when the format can't be created.
+ * </p>
+ * <p>
  * Performance tip: Try to mount a RAM drive/tmpfs on the folder where this component creates its temporary files
- * ([webapp work dir]/formulae/).
+ * ([webapp work dir]/formulae/), or point the {@code macro.formula.native.workDirectory} configuration property to
+ * one. Each instance works in its own sub-folder, removed when it's disposed, and the folders in which it compiles the
+ * formulae are reused from one rendering to the next.
  * </p>
  * 
  * @version $Id$
@@ -66,105 +106,753 @@ import org.xwiki.formula.ImageData;
 @Component
 @Named("native")
 @Singleton
-public class NativeFormulaRenderer extends AbstractFormulaRenderer implements Initializable
+public class NativeFormulaRenderer extends AbstractFormulaRenderer implements Initializable, Disposable
 {
     /** Logging helper object. */
     private static final Logger LOGGER = LoggerFactory.getLogger(NativeFormulaRenderer.class);
 
     private static final String ARG_O = "-o";
 
+    private static final String LATEX = "latex";
+
+    private static final String DVIPNG = "dvipng";
+
+    /** The resolution of the raster images, in dots per inch. */
+    private static final String DENSITY = "120";
+
+    private static final String ARG_INTERACTION = "--interaction=nonstopmode";
+
+    /** Stop at the first error instead of producing a partial DVI file. */
+    private static final String ARG_HALT_ON_ERROR = "-halt-on-error";
+
+    /** The prefix of the names of the directories in which the formulae are compiled. */
+    private static final String WORKSPACE_PREFIX = "workspace-";
+
+    /** The prefix of the names of the directories holding the files of a renderer instance. */
+    private static final String INSTANCE_PREFIX = "instance-";
+
+    /** The file locked by a renderer instance as long as it uses its directory. */
+    private static final String LOCK_FILE = ".lock";
+
+    /**
+     * The maximum number of formulae compiled by a single latex process, so that the render timeout, which applies to
+     * each process, stays meaningful for the batches of the documents having many formulae.
+     */
+    private static final int MAX_BATCH_SIZE = 20;
+
+    /** The maximum number of lines of the LaTeX log reported for an error. */
+    private static final int MAX_ERROR_LINES = 5;
+
+    /** The DVI command starting the postamble. */
+    private static final int DVI_POST = 248;
+
+    /** The DVI command ending the postamble. */
+    private static final int DVI_POST_POST = 249;
+
+    /** The number of bytes of the post_post command, including its parameters. */
+    private static final int DVI_POST_POST_SIZE = 6;
+
+    /** The bytes padding the end of a DVI file. */
+    private static final int DVI_PADDING = 223;
+
+    /** The position of the number of pages in the post command. */
+    private static final int DVI_PAGE_COUNT_OFFSET = 27;
+
+    /** The name of the precompiled format, without its extension. */
+    private static final String FORMAT_NAME = "formula";
+
+    /** The part of the TeX document that doesn't depend on the rendered formulae. */
+    private static final String PREAMBLE = "\\documentclass[10pt]{article}\n"
+        + "\\usepackage[paperheight=1000in]{geometry}\n" + "\\usepackage{amsmath}\n" + "\\usepackage{amsfonts}\n"
+        + "\\usepackage{amssymb}\n" + "\\usepackage{pst-plot}\n" + "\\usepackage{color}\n" + "\\pagestyle{empty}\n";
+
     /** Application container, needed for retrieving the work directory where temporary files can be created. */
     @Inject
     private Environment environment;
 
+    @Inject
+    private FormulaRendererConfiguration configuration;
+
     /** Temporary parent directory for storing files created during the image rendering process. */
     private File tempDirectory;
 
+    /**
+     * The directory owned by this instance, holding its workspaces and its precompiled preamble, so that several
+     * instances (e.g. cluster nodes or wikis sharing the work directory) never remove each other's files.
+     */
+    private File instanceDirectory;
+
+    /** Held until the instance is disposed, telling the other instances that its directory is still in use. */
+    private FileChannel instanceLock;
+
+    /** The directories in which no formula is currently compiled, ready to be reused. */
+    private final Queue<File> workspaces = new ConcurrentLinkedQueue<>();
+
+    /** The number of directories created to compile formulae, used to name them. */
+    private final AtomicInteger workspaceCount = new AtomicInteger();
+
+    /** The precompiled preamble, without its extension, {@code null} until it is created. */
+    private File format;
+
+    /** Whether the precompiled preamble can't be created or used, in which case the full preamble is used. */
+    private boolean formatDisabled;
+
+    /** Whether dvipng is installed, {@code null} until checked. Otherwise, dvips and convert are used. */
+    private Boolean dvipngAvailable;
+
+    /** Reads the error output of the external processes while they run, so that they never block on a full pipe. */
+    private ExecutorService streamReader;
+
+    /** Limits the number of external processes running at the same time, granting the slots in arrival order. */
+    private Semaphore processes;
+
+    /** The maximum number of threads waiting for a process slot. */
+    private int maxWaiting;
+
+    /** The number of threads currently waiting for a process slot. */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /** The number of processes that had to wait for a slot. */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /** The total time spent waiting for a process slot, in nanoseconds. */
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /** The number of processes that were not started because too many were already waiting. */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String workDirectory = this.configuration.getNativeWorkDirectory();
+        this.tempDirectory = StringUtils.isNotBlank(workDirectory) ? new File(workDirectory)
+            : new File(this.environment.getTemporaryDirectory(), "formulae");
+        this.tempDirectory.mkdirs();
+        // Remove the directories left by the instances that were not disposed, but not those still in use
+        File[] instanceDirectories = this.tempDirectory.listFiles((dir, name) -> name.startsWith(INSTANCE_PREFIX));
+        if (instanceDirectories != null) {
+            for (File directory : instanceDirectories) {
+                deleteIfStale(directory);
+            }
+        }
+        try {
+            this.instanceDirectory =
+                Files.createTempDirectory(this.tempDirectory.toPath(), INSTANCE_PREFIX).toFile();
+            this.instanceLock = FileChannel.open(new File(this.instanceDirectory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.instanceLock.lock();
+        } catch (IOException e) {
+            throw new InitializationException(
+                String.format("Failed to create the formula work directory in [%s]", this.tempDirectory), e);
+        }
+        this.processes = new Semaphore(Math.max(1, this.configuration.getNativeMaxProcesses()), true);
+        this.maxWaiting = Math.max(0, this.configuration.getNativeMaxWaiting());
+        this.streamReader = Executors.newCachedThreadPool(
+            new BasicThreadFactory.Builder().namingPattern("formula-native-stream-%d").daemon(true).build());
+    }
+
+    /**
+     * Removes the directory of another instance if that instance doesn't hold its lock anymore.
+     *
+     * @param directory the directory of another instance
+     */
+    private static void deleteIfStale(File directory)
+    {
+        // The lock file may not be created yet by an instance that is starting
+        File lockFile = new File(directory, LOCK_FILE);
+        if (!lockFile.exists()) {
+            return;
+        }
+        boolean stale = false;
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                lock.release();
+                stale = true;
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            // Locked by this virtual machine, or not readable
+            LOGGER.debug("Failed to check whether the formula directory [{}] is still in use", directory, e);
+        }
+        if (stale) {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.streamReader.shutdownNow();
+        this.workspaces.clear();
+        IOUtils.closeQuietly(this.instanceLock);
+        FileUtils.deleteQuietly(this.instanceDirectory);
+    }
+
+    @Override
+    protected String getRendererIdentity()
+    {
+        return super.getRendererIdentity() + '\n' + PREAMBLE + DENSITY;
+    }
+
     @Override
-    public void initialize()
+    protected String canonicalizeFormula(String formula)
     {
-        this.tempDirectory = new File(this.environment.getTemporaryDirectory(), "formulae");
-        this.tempDirectory.mkdir();
+        // The formula is wrapped in a group anyway
+        return FormulaCanonicalizer.canonicalize(formula, true);
     }
 
     @Override
     protected ImageData renderImage(String formula, boolean inline, FormulaRenderer.FontSize size,
         FormulaRenderer.Type type) throws IllegalArgumentException, IOException
     {
-        File tmpDirectory = null;
+        return render(Collections.singletonList(new FormulaRequest(formula, inline, size, type))).get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The {@link FormulaCanonicalizer#isSelfContained(String) self-contained} formulae are compiled by a single latex
+     * process, each one on its own page, and each page is then converted into an image. The other formulae, which
+     * could change the following pages or the way they are compiled, are left out so that they are rendered alone.
+     * Large batches are split so that a latex process never compiles more than {@value #MAX_BATCH_SIZE} formulae, and
+     * the formulae of a part that fails are left out too.
+     * </p>
+     */
+    @Override
+    protected Map<String, ImageData> renderImages(Map<String, FormulaRequest> requests)
+        throws IllegalArgumentException, IOException
+    {
+        List<String> imageIds = new ArrayList<>();
+        List<FormulaRequest> batch = new ArrayList<>();
+        for (Map.Entry<String, FormulaRequest> entry : requests.entrySet()) {
+            if (FormulaCanonicalizer.isSelfContained(entry.getValue().getFormula())) {
+                imageIds.add(entry.getKey());
+                batch.add(entry.getValue());
+            }
+        }
+        if (batch.size() < 2) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, ImageData> result = new LinkedHashMap<>();
+        for (int start = 0; start < batch.size(); start += MAX_BATCH_SIZE) {
+            int end = Math.min(start + MAX_BATCH_SIZE, batch.size());
+            try {
+                List<ImageData> images = render(batch.subList(start, end));
+                for (int i = start; i < end; i++) {
+                    result.put(imageIds.get(i), images.get(i - start));
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.debug("Failed to render the formulae [{}] to [{}] of a batch of [{}]", start + 1, end,
+                    batch.size(), e);
+            }
+        }
+        return result;
+    }
+
+    private List<ImageData> render(List<FormulaRequest> requests) throws IllegalArgumentException, IOException
+    {
+        for (FormulaRequest request : requests) {
+            if (Type.MATHML.equals(request.getType())) {
+                throw new IllegalArgumentException(String.format("The image type [%s] is not supported by the native "
+                    + "formula renderer.", request.getType().getMimetype()));
+            }
+        }
+
+        long deadline = getDeadline(this.configuration.getNativeRenderTimeout());
+        File tmpDirectory = acquireWorkspace();
         try {
-            String texContent =
-                "\\documentclass[10pt]{article}\n" + "\\usepackage[paperheight=1000in]{geometry}\n"
-                    + "\\usepackage{amsmath}\n" + "\\usepackage{amsfonts}\n" + "\\usepackage{amssymb}\n"
-                    + "\\usepackage{pst-plot}\n" + "\\usepackage{color}\n" + "\\pagestyle{empty}\n"
-                    + "\\begin{document}\n" + size.getCommand() + "\n" + wrapFormula(formula, inline)
-                    + "\\end{document}\n";
-            do {
-                tmpDirectory = new File(this.tempDirectory, RandomStringUtils.randomAlphanumeric(8));
-            } while (tmpDirectory.exists());
-            tmpDirectory.mkdir();
+            StringBuilder texContent = new StringBuilder("\\begin{document}\n");
+            // Each formula is placed on its own page
+            for (FormulaRequest request : requests) {
+                texContent.append(request.getSize().getCommand()).append('\n')
+                    .append(wrapFormula(request.getFormula(), request.isInline())).append("\n\\clearpage\n");
+            }
+            texContent.append("\\end{document}\n");
 
             final String baseName = tmpDirectory.getAbsolutePath() + "/file";
-            final String texFileName = baseName + ".tex";
             final String dviFileName = baseName + ".dvi";
-            final String psFileName = baseName + ".ps";
-            final String imageFileName = baseName + type.getExtension();
-
-            // Write the formula in a tex file
-            FileWriter fw = new FileWriter(texFileName);
-            fw.write(texContent);
-            fw.close();
 
             // TeX to DVI
-            String[] commandLine = new String[] {"latex", "--interaction=nonstopmode", texFileName};
-            executeCommand(commandLine, tmpDirectory);
-
-            if (Type.SVG.equals(type)) {
-                commandLine = new String[] {"dvisvgm",  "-n", ARG_O, imageFileName, dviFileName};
-            } else {
-                // DVI to PS
-                commandLine = new String[] {"dvips", "-E", dviFileName, ARG_O, psFileName};
-                executeCommand(commandLine, tmpDirectory);
-                // PS to image
-                commandLine = new String[] {"convert", "-density", "120", "-size", "120x120", psFileName,
-                    imageFileName};
-            }
-
-            executeCommand(commandLine, tmpDirectory);
-            return new ImageData(FileUtils.readFileToByteArray(new File(imageFileName)), type);
+            File preloadedFormat = getFormat(deadline);
+            if (preloadedFormat != null) {
+                if (!latex(texContent.toString(), preloadedFormat, baseName, tmpDirectory, deadline)) {
+                    checkLatexError(baseName);
+                    // Without any LaTeX error the failure probably comes from the format, so try without it
+                    if (!latex(PREAMBLE + texContent, null, baseName, tmpDirectory, deadline)) {
+                        failLatex(baseName);
+                    }
+                    LOGGER.warn("Failed to render formulae with the precompiled LaTeX preamble, disabling it");
+                    disableFormat();
+                }
+            } else if (!latex(PREAMBLE + texContent, null, baseName, tmpDirectory, deadline)) {
+                failLatex(baseName);
+            }
+
+            // The images are mapped to the formulae by page, so each formula must have produced exactly one page
+            int pageCount = getPageCount(new File(dviFileName));
+            if (pageCount != requests.size()) {
+                throw new IllegalArgumentException(String.format("The formulae produced [%d] pages instead of [%d]",
+                    pageCount, requests.size()));
+            }
+
+            String[] commandLine;
+            List<ImageData> images = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                Type type = requests.get(i).getType();
+                String page = String.valueOf(i + 1);
+                String pageBaseName = baseName + '-' + page;
+                if (Type.SVG.equals(type)) {
+                    // The image is written on the standard output, to not go through the disk
+                    commandLine = new String[] {"dvisvgm", "-n", "-p", page, "--stdout", dviFileName};
+                } else {
+                    // DVI to PNG, the other raster formats being encoded in memory
+                    ImageData image = dvipng(dviFileName, page, pageBaseName, type, tmpDirectory, deadline);
+                    if (image != null) {
+                        images.add(image);
+                        continue;
+                    }
+                    String psFileName = pageBaseName + ".ps";
+                    // DVI to PS
+                    commandLine = new String[] {"dvips", "-E", "-pp", page, dviFileName, ARG_O, psFileName};
+                    checkCommand(commandLine, tmpDirectory, deadline);
+                    // PS to image
+                    commandLine = new String[] {"convert", "-density", DENSITY, "-size", "120x120", psFileName,
+                        type.getExtension().substring(1) + ":-"};
+                }
+
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                if (!executeCommand(commandLine, tmpDirectory, deadline, output) || output.size() == 0) {
+                    throw new IOException(String.format("The [%s] command failed", commandLine[0]));
+                }
+                images.add(new ImageData(output.toByteArray(), type));
+            }
+            return images;
         } finally {
-            FileUtils.deleteQuietly(tmpDirectory);
+            releaseWorkspace(tmpDirectory);
         }
     }
 
     /**
-     * Execute a system command.
+     * Reads the number of pages of a DVI file from its postamble.
+     *
+     * @param dviFile the DVI file
+     * @return the number of pages of the file
+     * @throws IOException if the file can't be read or is not a valid DVI file
+     */
+    static int getPageCount(File dviFile) throws IOException
+    {
+        try (RandomAccessFile dvi = new RandomAccessFile(dviFile, "r")) {
+            // The file ends with the post_post command, the position of the postamble, the DVI version and padding
+            long position = dvi.length() - 1;
+            while (position > DVI_POST_POST_SIZE && readByte(dvi, position) == DVI_PADDING) {
+                position--;
+            }
+            if (readByte(dvi, position - DVI_POST_POST_SIZE + 1) != DVI_POST_POST) {
+                throw new IOException(String.format("Invalid DVI file [%s]", dviFile));
+            }
+            dvi.seek(position - Integer.BYTES);
+            long postamble = dvi.readInt() & 0xFFFFFFFFL;
+            if (postamble >= position || readByte(dvi, postamble) != DVI_POST) {
+                throw new IOException(String.format("Invalid DVI file [%s]", dviFile));
+            }
+            // The post command is followed by the position of the last page, the units, the maximum sizes and depth of
+            // stack, and the number of pages
+            dvi.seek(postamble + DVI_PAGE_COUNT_OFFSET);
+            return dvi.readUnsignedShort();
+        }
+    }
+
+    private static int readByte(RandomAccessFile file, long position) throws IOException
+    {
+        file.seek(position);
+        return file.readUnsignedByte();
+    }
+
+    private File acquireWorkspace() throws IOException
+    {
+        File workspace = this.workspaces.poll();
+        if (workspace == null) {
+            workspace = new File(this.instanceDirectory, WORKSPACE_PREFIX + this.workspaceCount.incrementAndGet());
+            FileUtils.forceMkdir(workspace);
+        }
+        return workspace;
+    }
+
+    private void releaseWorkspace(File workspace)
+    {
+        // The files of the rendering are removed so that they are not mistaken for those of the next rendering
+        try {
+            FileUtils.cleanDirectory(workspace);
+            this.workspaces.offer(workspace);
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.debug("Failed to clean the formula workspace [{}], removing it", workspace, e);
+            FileUtils.deleteQuietly(workspace);
+        }
+    }
+
+    /**
+     * Converts a page of a DVI file directly into an image, without going through PostScript.
+     *
+     * @return the image, or {@code null} if dvipng is not available
+     */
+    private ImageData dvipng(String dviFileName, String page, String pageBaseName, Type type, File cwd,
+        long deadline) throws IOException
+    {
+        if (!isDvipngAvailable()) {
+            return null;
+        }
+
+        String pngFileName = pageBaseName + Type.PNG.getExtension();
+        File pngFile = new File(pngFileName);
+        if (!executeCommand(new String[] {DVIPNG, "-q", "-T", "tight", "-D", DENSITY, "-pp", page, ARG_O,
+            pngFileName, dviFileName}, cwd, deadline) || !pngFile.exists()) {
+            return null;
+        }
+        if (Type.PNG.equals(type)) {
+            return new ImageData(FileUtils.readFileToByteArray(pngFile), type);
+        }
+
+        BufferedImage png = ImageIO.read(pngFile);
+        if (png == null) {
+            return null;
+        }
+        // JPEG doesn't support transparency, so the image is drawn on an opaque background
+        BufferedImage image = new BufferedImage(png.getWidth(), png.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.drawImage(png, 0, 0, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, type.name().toLowerCase(Locale.ROOT), output)) {
+            return null;
+        }
+        return new ImageData(output.toByteArray(), type);
+    }
+
+    private synchronized boolean isDvipngAvailable()
+    {
+        if (this.dvipngAvailable == null) {
+            try {
+                Process process = new ProcessBuilder(DVIPNG, "--version").redirectOutput(Redirect.DISCARD)
+                    .redirectError(Redirect.DISCARD).start();
+                try {
+                    long deadline = getDeadline(this.configuration.getNativeCommandTimeout());
+                    this.dvipngAvailable = process.waitFor(getRemainingTime(deadline), TimeUnit.NANOSECONDS)
+                        && process.exitValue() == 0;
+                } finally {
+                    destroy(process);
+                }
+            } catch (IOException e) {
+                // The command could not be started or timed out
+                this.dvipngAvailable = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (!this.dvipngAvailable) {
+                LOGGER.warn("Failed to run dvipng, using dvips and convert to render formulae");
+            }
+        }
+        return this.dvipngAvailable;
+    }
+
+    private boolean latex(String texContent, File preloadedFormat, String baseName, File cwd, long deadline)
+        throws IOException
+    {
+        String texFileName = baseName + ".tex";
+        FileUtils.writeStringToFile(new File(texFileName), texContent, StandardCharsets.UTF_8);
+        String[] commandLine;
+        if (preloadedFormat != null) {
+            commandLine = new String[] {LATEX, "-fmt=" + preloadedFormat.getAbsolutePath(), ARG_INTERACTION,
+                ARG_HALT_ON_ERROR, texFileName};
+        } else {
+            commandLine = new String[] {LATEX, ARG_INTERACTION, ARG_HALT_ON_ERROR, texFileName};
+        }
+        return executeCommand(commandLine, cwd, deadline) && new File(baseName + ".dvi").exists();
+    }
+
+    /**
+     * Reports the error found in the LaTeX log, if any.
+     *
+     * @param baseName the path of the compiled file, without its extension
+     * @throws IllegalArgumentException if LaTeX reported an error, usually because the formula is not valid
+     */
+    private void checkLatexError(String baseName) throws IllegalArgumentException
+    {
+        File logFile = new File(baseName + ".log");
+        if (!logFile.exists()) {
+            return;
+        }
+
+        // The errors start with "!", followed by the context of the error and the line number
+        List<String> error = new ArrayList<>();
+        try {
+            for (String line : FileUtils.readLines(logFile, StandardCharsets.ISO_8859_1)) {
+                if (error.isEmpty() && line.startsWith("!")) {
+                    error.add(line.substring(1).trim());
+                } else if (!error.isEmpty() && error.size() < MAX_ERROR_LINES && StringUtils.isNotBlank(line)) {
+                    error.add(line.trim());
+                    if (line.startsWith("l.")) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed to read the LaTeX log [{}]", logFile, e);
+        }
+        if (!error.isEmpty()) {
+            throw new IllegalArgumentException(String.join(" ", error));
+        }
+    }
+
+    private void failLatex(String baseName) throws IllegalArgumentException, IOException
+    {
+        checkLatexError(baseName);
+        throw new IOException("Failed to compile the formulae with latex");
+    }
+
+    private void checkCommand(String[] commandLine, File cwd, long deadline) throws IOException
+    {
+        if (!executeCommand(commandLine, cwd, deadline)) {
+            throw new IOException(String.format("The [%s] command failed", commandLine[0]));
+        }
+    }
+
+    /**
+     * @param deadline the time at which the rendering must be finished, as returned by {@link System#nanoTime()}
+     * @return the precompiled preamble to pass to latex, without its extension, or {@code null} if it can't be created
+     * @throws FormulaRenderTimeoutException if the format can't be created before the deadline
+     */
+    private synchronized File getFormat(long deadline) throws IOException
+    {
+        if (this.formatDisabled) {
+            return null;
+        }
+        File formatFile = new File(this.instanceDirectory, FORMAT_NAME + ".fmt");
+        if (this.format != null && formatFile.exists()) {
+            return this.format;
+        }
+
+        // Dump the format, loading the standard LaTeX format first, so that the packages are parsed only once
+        File preambleFile = new File(this.instanceDirectory, FORMAT_NAME + ".tex");
+        try {
+            FileUtils.writeStringToFile(preambleFile, PREAMBLE + "\\dump\n", StandardCharsets.UTF_8);
+            executeCommand(new String[] {LATEX, "-ini", "-jobname=" + FORMAT_NAME, ARG_INTERACTION, "&latex",
+                preambleFile.getAbsolutePath()}, this.instanceDirectory, deadline);
+        } catch (FormulaRenderTimeoutException | InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            // Try again with the next rendering, since the command may not have been run at all
+            LOGGER.debug("Failed to create the precompiled LaTeX preamble", e);
+            return null;
+        }
+        if (formatFile.exists()) {
+            this.format = new File(this.instanceDirectory, FORMAT_NAME);
+        } else {
+            LOGGER.warn("Failed to create the precompiled LaTeX preamble, the full preamble is used for each formula");
+            this.formatDisabled = true;
+        }
+        return this.format;
+    }
+
+    private synchronized void disableFormat()
+    {
+        this.formatDisabled = true;
+        this.format = null;
+    }
+
+    /**
+     * @return the number of renderings currently waiting for a process slot
+     */
+    public int getWaitingCount()
+    {
+        return this.waiting.get();
+    }
+
+    /**
+     * @return the number of processes that had to wait for a slot since the renderer was started
+     */
+    public long getWaitCount()
+    {
+        return this.waitCount.get();
+    }
+
+    /**
+     * @return the total time spent waiting for a process slot since the renderer was started, in milliseconds
+     */
+    public long getWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.waitTime.get());
+    }
+
+    /**
+     * @return the number of processes that were not started because too many renderings were waiting
+     */
+    public long getRejectedCount()
+    {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * Waits for a process slot, so that the machine is not overloaded by concurrent renderings.
+     *
+     * @param deadline the time at which the rendering must be finished, as returned by {@link System#nanoTime()}
+     * @throws IOException if too many renderings are already waiting, if no slot is available before the deadline, or
+     *         if the thread is interrupted
+     */
+    private void acquireProcess(long deadline) throws IOException
+    {
+        // Unlike tryAcquire(), the timed version respects the waiting order
+        try {
+            if (this.processes.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a process slot");
+        }
+
+        if (this.waiting.incrementAndGet() > this.maxWaiting) {
+            this.waiting.decrementAndGet();
+            this.rejectedCount.incrementAndGet();
+            throw new IOException(String.format("Too many formulae waiting to be rendered (%d)", this.maxWaiting));
+        }
+        long start = System.nanoTime();
+        try {
+            if (!this.processes.tryAcquire(getRemainingTime(deadline), TimeUnit.NANOSECONDS)) {
+                throw new FormulaRenderTimeoutException("Timed out while waiting for a process slot");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a process slot");
+        } finally {
+            this.waiting.decrementAndGet();
+            long waited = System.nanoTime() - start;
+            this.waitCount.incrementAndGet();
+            this.waitTime.addAndGet(waited);
+            LOGGER.debug("Waited [{}] ms for a process slot", TimeUnit.NANOSECONDS.toMillis(waited));
+        }
+    }
+
+    /**
+     * Execute a system command, discarding its standard output.
+     * 
+     * @param commandLine the command and its arguments
+     * @param cwd the directory to use as the current working directory for the executed process
+     * @param deadline the time at which the rendering must be finished, as returned by {@link System#nanoTime()}
+     * @return {@code true} if the command succeeded (return code 0), {@code false} otherwise
+     * @throws FormulaRenderTimeoutException if the command runs longer than allowed, in which case it's killed
+     * @throws IOException if the process failed to start, or if too many processes are waiting to be started
+     */
+    private boolean executeCommand(String[] commandLine, File cwd, long deadline) throws IOException
+    {
+        return executeCommand(commandLine, cwd, deadline, null);
+    }
+
+    /**
+     * Execute a system command, collecting its standard output.
      * 
      * @param commandLine the command and its arguments
      * @param cwd the directory to use as the current working directory for the executed process
+     * @param deadline the time at which the rendering must be finished, as returned by {@link System#nanoTime()}
+     * @param output where to write the standard output of the command, {@code null} to discard it
      * @return {@code true} if the command succeeded (return code 0), {@code false} otherwise
-     * @throws IOException if the process failed to start
+     * @throws FormulaRenderTimeoutException if the command runs longer than allowed, in which case it's killed
+     * @throws IOException if the process failed to start, or if too many processes are waiting to be started
      */
-    private boolean executeCommand(String[] commandLine, File cwd) throws IOException
+    private boolean executeCommand(String[] commandLine, File cwd, long deadline, OutputStream output)
+        throws IOException
     {
-        List<String> commandList = new Vector<>(commandLine.length);
-        Collections.addAll(commandList, commandLine);
+        acquireProcess(deadline);
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(commandLine);
+            processBuilder.directory(cwd);
+            if (output == null) {
+                processBuilder.redirectOutput(Redirect.DISCARD);
+            }
+            Process process = processBuilder.start();
+            // Both outputs are read while the command runs, so that it never blocks on a full pipe
+            Future<String> errors =
+                this.streamReader.submit(() -> IOUtils.toString(process.getErrorStream(), Charset.defaultCharset()));
+            Future<Long> copy = output != null
+                ? this.streamReader.submit(() -> IOUtils.copyLarge(process.getInputStream(), output)) : null;
+
+            try {
+                long timeout = Math.min(getRemainingTime(deadline),
+                    getRemainingTime(getDeadline(this.configuration.getNativeCommandTimeout())));
+                if (!process.waitFor(timeout, TimeUnit.NANOSECONDS)) {
+                    throw new FormulaRenderTimeoutException(
+                        String.format("The [%s] command timed out and was killed", commandLine[0]));
+                }
+                if (copy != null) {
+                    copy.get(getRemainingTime(deadline), TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                    String.format("Interrupted while waiting for the [%s] command", commandLine[0]));
+            } catch (TimeoutException e) {
+                throw new FormulaRenderTimeoutException(
+                    String.format("Timed out while reading the output of the [%s] command", commandLine[0]), e);
+            } catch (ExecutionException e) {
+                throw new IOException(String.format("Failed to read the output of the [%s] command", commandLine[0]),
+                    e.getCause());
+            } finally {
+                destroy(process);
+            }
 
-        ProcessBuilder processBuilder = new ProcessBuilder(commandList);
-        processBuilder.directory(cwd);
-        Process process = processBuilder.start();
-        IOUtils.copy(process.getInputStream(), new NullOutputStream());
+            if (process.exitValue() != 0) {
+                LOGGER.debug("Error generating image: [{}]", getErrors(errors));
+            }
 
+            return process.exitValue() == 0;
+        } finally {
+            this.processes.release();
+        }
+    }
+
+    private String getErrors(Future<String> errors)
+    {
         try {
-            process.waitFor();
+            return errors.get(1, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return "";
+        } catch (ExecutionException | TimeoutException e) {
+            return "";
         }
+    }
 
-        if (process.exitValue() != 0) {
-            LOGGER.debug("Error generating image: " + IOUtils.toString(process.getErrorStream()));
+    /**
+     * Kills a process along with all the processes it started, such as the ghostscript delegate of convert.
+     */
+    private void destroy(Process process)
+    {
+        if (process.isAlive()) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
         }
+    }
 
-        return process.exitValue() == 0;
+    /**
+     * @param timeout a number of seconds, {@code 0} or less for no limit
+     * @return the time at which the timeout expires, as returned by {@link System#nanoTime()}
+     */
+    private static long getDeadline(int timeout)
+    {
+        long now = System.nanoTime();
+        return timeout > 0 ? now + TimeUnit.SECONDS.toNanos(timeout) : now + Long.MAX_VALUE / 2;
+    }
+
+    private static long getRemainingTime(long deadline) throws FormulaRenderTimeoutException
+    {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new FormulaRenderTimeoutException("The formula rendering timed out");
+        }
+        return remaining;
     }
 }
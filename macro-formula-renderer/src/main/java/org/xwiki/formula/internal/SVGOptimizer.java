@@ -0,0 +1,236 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Reduces the size of the SVG images produced by the renderers, in a single streaming pass: the comments, processing
+ * instructions, document type and metadata are removed, as well as the whitespace between the elements, and the
+ * coordinates are rounded to the configured number of decimals.
+ *
+ * @version $Id$
+ * @since 14.9
+ * @see org.xwiki.formula.FormulaRendererConfiguration#isSVGOptimization()
+ */
+public final class SVGOptimizer
+{
+    /** The attributes holding coordinates or lengths, whose precision can be reduced. */
+    private static final Set<String> GEOMETRY_ATTRIBUTES = new HashSet<>(Arrays.asList("d", "points", "viewBox", "x",
+        "y", "x1", "y1", "x2", "y2", "cx", "cy", "r", "rx", "ry", "width", "height", "stroke-width"));
+
+    /** The elements whose content is not displayed. */
+    private static final Set<String> METADATA_ELEMENTS = Collections.singleton("metadata");
+
+    /** The elements in which the whitespace is significant. */
+    private static final Set<String> TEXT_ELEMENTS = new HashSet<>(Arrays.asList("text", "tspan", "title"));
+
+    /** The path data attribute. */
+    private static final String PATH_DATA = "d";
+
+    /** Matches the decimal numbers, with an optional exponent. */
+    private static final Pattern NUMBER = Pattern.compile("-?(?:\\d+\\.\\d*|\\.\\d+|\\d+)(?:[eE][-+]?\\d+)?");
+
+    /** Matches the separators of the path data. */
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s,]+");
+
+    /** Matches the separators of the path data that are not needed. */
+    private static final Pattern PATH_SEPARATOR = Pattern.compile(" (?=[-A-Za-z])|(?<=[A-Za-z]) ");
+
+    /**
+     * Creates the readers of the SVG images. The factories are costly to look up, and can be shared between threads
+     * once configured.
+     */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    /** Creates the writers of the optimized SVG images. */
+    private static final XMLOutputFactory OUTPUT_FACTORY;
+
+    static {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    }
+
+    private SVGOptimizer()
+    {
+        // Utility class
+    }
+
+    /**
+     * @param svg the SVG image to optimize
+     * @param precision the maximum number of decimals of the coordinates
+     * @return the optimized SVG image
+     * @throws IOException if the SVG image can't be parsed
+     */
+    public static byte[] optimize(byte[] svg, int precision) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(svg.length);
+        try {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(new ByteArrayInputStream(svg));
+            XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(output, StandardCharsets.UTF_8.name());
+            // The number of ignored elements, and of text elements, the current element is in
+            int ignored = 0;
+            int text = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement element = event.asStartElement();
+                    if (ignored > 0 || METADATA_ELEMENTS.contains(element.getName().getLocalPart())) {
+                        ignored++;
+                    } else if (TEXT_ELEMENTS.contains(element.getName().getLocalPart())) {
+                        text++;
+                        writeStartElement(element, false, writer, precision);
+                    } else {
+                        // Whitespace between the elements is dropped so the empty elements can be closed right away
+                        skipWhitespace(reader);
+                        boolean empty = reader.peek().isEndElement();
+                        if (empty) {
+                            reader.nextEvent();
+                        }
+                        writeStartElement(element, empty, writer, precision);
+                    }
+                } else if (event.isEndElement()) {
+                    if (ignored > 0) {
+                        ignored--;
+                        continue;
+                    }
+                    if (TEXT_ELEMENTS.contains(event.asEndElement().getName().getLocalPart())) {
+                        text--;
+                    }
+                    writer.writeEndElement();
+                } else if (event.isCharacters() && ignored == 0
+                    && (text > 0 || !event.asCharacters().isWhiteSpace())) {
+                    writer.writeCharacters(event.asCharacters().getData());
+                }
+                // The document start and end, comments, processing instructions and DTD are dropped
+            }
+            writer.flush();
+            writer.close();
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to optimize the SVG image", e);
+        }
+        return output.toByteArray();
+    }
+
+    private static void skipWhitespace(XMLEventReader reader) throws XMLStreamException
+    {
+        while (reader.hasNext() && (reader.peek().isCharacters() && reader.peek().asCharacters().isWhiteSpace()
+            || reader.peek().getEventType() == XMLStreamConstants.COMMENT)) {
+            reader.nextEvent();
+        }
+    }
+
+    private static void writeStartElement(StartElement element, boolean empty, XMLStreamWriter writer,
+        int precision) throws XMLStreamException
+    {
+        QName name = element.getName();
+        if (empty) {
+            writer.writeEmptyElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+        } else {
+            writer.writeStartElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+        }
+        for (Iterator<Namespace> it = element.getNamespaces(); it.hasNext();) {
+            Namespace namespace = it.next();
+            if (namespace.isDefaultNamespaceDeclaration()) {
+                writer.writeDefaultNamespace(namespace.getNamespaceURI());
+            } else {
+                writer.writeNamespace(namespace.getPrefix(), namespace.getNamespaceURI());
+            }
+        }
+        for (Iterator<Attribute> it = element.getAttributes(); it.hasNext();) {
+            Attribute attribute = it.next();
+            QName attributeName = attribute.getName();
+            String value = attribute.getValue();
+            if (attributeName.getNamespaceURI().isEmpty()
+                && GEOMETRY_ATTRIBUTES.contains(attributeName.getLocalPart())) {
+                value = roundNumbers(value, precision);
+                if (PATH_DATA.equals(attributeName.getLocalPart())) {
+                    value = minifyPathData(value);
+                }
+            }
+            writer.writeAttribute(attributeName.getPrefix(), attributeName.getNamespaceURI(),
+                attributeName.getLocalPart(), value);
+        }
+    }
+
+    private static String minifyPathData(String value)
+    {
+        // The numbers only need to be separated when the next one doesn't start with a sign, and the commands don't
+        // need to be separated from their arguments
+        String result = SEPARATORS.matcher(value.trim()).replaceAll(" ");
+        return PATH_SEPARATOR.matcher(result).replaceAll("");
+    }
+
+    private static String roundNumbers(String value, int precision)
+    {
+        Matcher matcher = NUMBER.matcher(value);
+        StringBuilder result = new StringBuilder(value.length());
+        int end = 0;
+        while (matcher.find()) {
+            result.append(value, end, matcher.start());
+            result.append(round(matcher.group(), precision));
+            end = matcher.end();
+        }
+        return result.append(value, end, value.length()).toString();
+    }
+
+    private static String round(String number, int precision)
+    {
+        BigDecimal rounded = new BigDecimal(number).setScale(precision, RoundingMode.HALF_UP).stripTrailingZeros();
+        if (rounded.signum() == 0) {
+            return "0";
+        }
+        String result = rounded.toPlainString();
+        // The leading zero is not needed
+        if (result.startsWith("0.")) {
+            return result.substring(1);
+        } else if (result.startsWith("-0.")) {
+            return '-' + result.substring(2);
+        }
+        return result;
+    }
+}
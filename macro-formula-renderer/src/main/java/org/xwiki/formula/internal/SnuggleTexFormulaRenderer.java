@@ -19,30 +19,34 @@
  */
 package org.xwiki.formula.internal;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.commons.io.output.NullOutputStream;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.formula.AbstractFormulaRenderer;
 import org.xwiki.formula.FormulaRenderer;
 import org.xwiki.formula.ImageData;
 
+import net.sourceforge.jeuclid.LayoutContext;
+import net.sourceforge.jeuclid.context.LayoutContextImpl;
+import net.sourceforge.jeuclid.context.Parameter;
+import net.sourceforge.jeuclid.converter.Converter;
+import uk.ac.ed.ph.snuggletex.SerializationMethod;
 import uk.ac.ed.ph.snuggletex.SnuggleEngine;
 import uk.ac.ed.ph.snuggletex.SnuggleInput;
 import uk.ac.ed.ph.snuggletex.SnuggleSession;
-import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
-import uk.ac.ed.ph.snuggletex.jeuclid.JEuclidUtilities;
-import uk.ac.ed.ph.snuggletex.jeuclid.SimpleMathMLImageSavingCallback;
+import uk.ac.ed.ph.snuggletex.XMLStringOutputOptions;
 
 /**
  * Implementation of the {@link FormulaRenderer} component, which uses <a
@@ -50,6 +54,10 @@ import uk.ac.ed.ph.snuggletex.jeuclid.SimpleMathMLImageSavingCallback;
  * formulae. The results are not as eye-pleasing as those obtained from the native TeX system, but this is a pure-java
  * solution, which doesn't depend on any external services or native commands. It could probably be tweaked to obtain
  * better results, by selecting a different font.
+ * <p>
+ * Since SnuggleTeX converts the formulae to MathML, this is also the renderer producing the {@link Type#MATHML MathML}
+ * displayed directly by the browsers.
+ * </p>
  * 
  * @version $Id$
  * @since 2.0M3
@@ -59,86 +67,100 @@ import uk.ac.ed.ph.snuggletex.jeuclid.SimpleMathMLImageSavingCallback;
 @Singleton
 public final class SnuggleTexFormulaRenderer extends AbstractFormulaRenderer
 {
-    /** Logging helper object. */
-    private static final Logger LOGGER = LoggerFactory.getLogger(SnuggleTexFormulaRenderer.class);
-
     /** The list of image types supported by the renderer. */
-    private static final List<Type> ALLOWED_TYPES = Arrays.asList(Type.JPEG, Type.PNG, Type.GIF);
+    private static final List<Type> ALLOWED_TYPES = Arrays.asList(Type.JPEG, Type.PNG, Type.GIF, Type.MATHML);
 
-    /** The SnuggleTeX engine responsible for rendering the formulae. */
-    private SnuggleEngine engine = new SnuggleEngine();
+    /** The namespace of the MathML elements produced by SnuggleTeX. */
+    private static final String MATHML_NAMESPACE = "http://www.w3.org/1998/Math/MathML";
 
-    @Override
-    protected ImageData renderImage(String formula, boolean inline, FormulaRenderer.FontSize size,
-        FormulaRenderer.Type type) throws IllegalArgumentException, IOException
-    {
-        if (!ALLOWED_TYPES.contains(type)) {
-            throw new IllegalArgumentException(String.format("The image type [%s] is not supported by the SnuggleTeX "
-                + "formula renderer.", type.getMimetype()));
-        }
+    /** The name of the root MathML element. */
+    private static final String MATHML_ROOT = "math";
 
-        SnuggleSession session = this.engine.createSession();
-
-        SnuggleInput input = new SnuggleInput(wrapFormula(formula, inline));
-        session.parseInput(input);
+    /** The SnuggleTeX engine responsible for rendering the formulae. */
+    private final SnuggleEngine engine = new SnuggleEngine();
 
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        CustomMathMLImageSavingCallback callback = new CustomMathMLImageSavingCallback(output, size.getSize());
+    /** The sessions are not thread safe, so each thread reuses its own session. */
+    private final ThreadLocal<SnuggleSession> sessions = ThreadLocal.withInitial(this.engine::createSession);
 
-        WebPageOutputOptions options = JEuclidUtilities.createWebPageOptions(false, callback);
-        session.writeWebPage(options, new NullOutputStream());
+    /** The options used to serialize the MathML, which are only read once created. */
+    private final XMLStringOutputOptions mathMLOptions = new XMLStringOutputOptions();
 
-        return new ImageData(output.toByteArray(), type);
-    }
+    /** The JEuclid layout contexts for each font size, which are only read once created. */
+    private final Map<FontSize, LayoutContext> layoutContexts = new EnumMap<>(FontSize.class);
 
     /**
-     * Callback which writes the first generated image into a provided output stream.
-     * 
-     * @version $Id$
+     * Default constructor, preparing the layout contexts.
      */
-    private class CustomMathMLImageSavingCallback extends SimpleMathMLImageSavingCallback
+    public SnuggleTexFormulaRenderer()
     {
-        /** The target output. The first generated image will be pushed into this stream. */
-        private OutputStream target;
-
-        /**
-         * Simple constructor which receives the {@link #target} output stream, and the default font size for the image.
-         * 
-         * @param target the target output, see {@link #target}
-         * @param size the desired font size
-         */
-        CustomMathMLImageSavingCallback(OutputStream target, int size)
-        {
-            this.target = target;
-            setFontSize(String.valueOf(size));
+        for (FontSize size : FontSize.values()) {
+            LayoutContextImpl layoutContext = new LayoutContextImpl(LayoutContextImpl.getDefaultLayoutContext());
+            layoutContext.setParameter(Parameter.MATHSIZE, (float) size.getSize());
+            layoutContext.setParameter(Parameter.ANTIALIAS, true);
+            this.layoutContexts.put(size, layoutContext);
         }
+        this.mathMLOptions.setSerializationMethod(SerializationMethod.XML);
+        this.mathMLOptions.setEncoding(StandardCharsets.UTF_8.name());
+        this.mathMLOptions.setIncludingXMLDeclaration(false);
+    }
 
-        @Override
-        public File getImageOutputFile(int mathmlCounter)
-        {
-            // Not used here)
-            return null;
+    @Override
+    protected ImageData renderImage(String formula, boolean inline, FormulaRenderer.FontSize size,
+        FormulaRenderer.Type type) throws IllegalArgumentException, IOException
+    {
+        if (!ALLOWED_TYPES.contains(type)) {
+            throw new IllegalArgumentException(String.format("The image type [%s] is not supported by the SnuggleTeX "
+                + "formula renderer.", type.getMimetype()));
         }
 
-        @Override
-        public OutputStream getImageOutputStream(int mathmlCounter)
-        {
-            // Valid input only produces 1 image, so ignore all others
-            return mathmlCounter == 0 ? this.target : null;
+        SnuggleSession session = this.sessions.get();
+        try {
+            session.parseInput(new SnuggleInput(wrapFormula(formula, inline)));
+            if (Type.MATHML.equals(type)) {
+                return renderMathML(formula, session);
+            }
+
+            // Lay out the MathML directly, instead of building a web page in which JEuclid replaces it by an image
+            Element math = getMath(session.buildDOMSubtree());
+            if (math == null) {
+                throw new IllegalArgumentException(
+                    String.format("Failed to parse the formula [%s]: %s", formula, session.getErrors()));
+            }
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Converter.getInstance().convert(math, output, type.getMimetype(), this.layoutContexts.get(size));
+            return new ImageData(output.toByteArray(), type);
+        } finally {
+            session.reset();
         }
+    }
 
-        @Override
-        public String getImageURL(int mathmlCounter)
-        {
-            // Not needed here as we're throwing the resulting XML away
-            return "";
+    private ImageData renderMathML(String formula, SnuggleSession session)
+    {
+        // Unlike images, the MathML of an invalid formula doesn't show the errors
+        if (!session.getErrors().isEmpty()) {
+            throw new IllegalArgumentException(
+                String.format("Failed to parse the formula [%s]: %s", formula, session.getErrors()));
         }
+        String mathML = session.buildXMLString(this.mathMLOptions);
+        return new ImageData(mathML.getBytes(StandardCharsets.UTF_8), Type.MATHML);
+    }
 
-        public void imageSavingFailed(Object imageFileOrOutputStream, int mathmlCounter, String contentType,
-            Throwable exception)
-        {
-            // Shouldn't really happen
-            LOGGER.error("Can't save image", exception);
+    private Element getMath(NodeList nodes)
+    {
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node instanceof Element) {
+                Element element = (Element) node;
+                if (MATHML_NAMESPACE.equals(element.getNamespaceURI()) && MATHML_ROOT.equals(element.getLocalName())) {
+                    return element;
+                }
+                NodeList descendants = element.getElementsByTagNameNS(MATHML_NAMESPACE, MATHML_ROOT);
+                if (descendants.getLength() > 0) {
+                    return (Element) descendants.item(0);
+                }
+            }
         }
+        return null;
     }
 }
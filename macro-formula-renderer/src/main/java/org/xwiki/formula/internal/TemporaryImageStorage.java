@@ -20,29 +20,35 @@
 package org.xwiki.formula.internal;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.formula.FormulaRenderer;
+import org.xwiki.formula.FormulaRendererConfiguration;
 import org.xwiki.formula.ImageData;
 import org.xwiki.formula.ImageStorage;
 import org.xwiki.resource.temporary.TemporaryResourceReference;
 import org.xwiki.resource.temporary.TemporaryResourceStore;
 
 /**
- * Implementation for the {@link ImageStorage} component using Temporary resources.
+ * Implementation for the {@link ImageStorage} component using Temporary resources. It is used behind the in-memory
+ * {@link CachingImageStorage}.
  * 
  * @version $Id$
  * @since 14.7
  */
 @Component
+@Named("temporary")
 @Singleton
 public class TemporaryImageStorage implements ImageStorage
 {
@@ -55,6 +61,9 @@ public class TemporaryImageStorage implements ImageStorage
     @Inject
     private TemporaryResourceReferenceProvider resourceReferenceProvider;
 
+    @Inject
+    private FormulaRendererConfiguration configuration;
+
     @Override
     public ImageData get(String id)
     {
@@ -84,6 +93,13 @@ public class TemporaryImageStorage implements ImageStorage
         return imageData;
     }
 
+    @Override
+    public boolean exists(String id)
+    {
+        return StringUtils.isNotEmpty(id) && loadFile(this.resourceReferenceProvider.getImageReference(id)) != null
+            && loadFile(this.resourceReferenceProvider.getImageTypeReference(id)) != null;
+    }
+
     @Override
     public void put(String id, ImageData data)
     {
@@ -99,12 +115,30 @@ public class TemporaryImageStorage implements ImageStorage
             InputStream typeIs = new ByteArrayInputStream(data.getType().name().getBytes());
             this.temporaryResourceStore.createTemporaryFile(this.resourceReferenceProvider.getImageTypeReference(id),
                 typeIs);
+            // Save the compressed image, served as is to the browsers accepting it
+            if (data.getType() == FormulaRenderer.Type.SVG && this.configuration.isSVGPrecompression()) {
+                byte[] compressed = compress(data.getData());
+                if (compressed.length < data.getData().length) {
+                    this.temporaryResourceStore.createTemporaryFile(
+                        this.resourceReferenceProvider.getCompressedImageReference(id),
+                        new ByteArrayInputStream(compressed));
+                }
+            }
         } catch (IOException e) {
             throw new RuntimeException(String.format("Failed to write Formula image data [%s] for id [%s]",
                 data, id), e);
         }
     }
 
+    private byte[] compress(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(data);
+        }
+        return output.toByteArray();
+    }
+
     private File loadFile(TemporaryResourceReference reference)
     {
         File file;
@@ -25,13 +25,15 @@ import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.formula.FormulaRenderer;
-import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.formula.FormulaRendererConfiguration;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.resource.temporary.TemporaryResourceReference;
 
 import com.xpn.xwiki.XWikiContext;
 
 /**
- * Create a Temporary Resource Reference pointing at a generated formula image, based on a passed id. This is
+ * Create a Temporary Resource Reference pointing at a generated formula image, based on a passed id. The images are
+ * stored per document, or per wiki when {@link FormulaRendererConfiguration#isSharedStorage() shared}. This is
  * temporary while waiting for a refactoring of ImageStorage and/or FormulaRenderer.
  *
  * @version $Id$
@@ -41,11 +43,15 @@ import com.xpn.xwiki.XWikiContext;
 @Singleton
 public class TemporaryResourceReferenceProvider
 {
-    private static final String MODULE_ID = "formula";
+    /** The identifier of the temporary resource module holding the formula images. */
+    public static final String MODULE_ID = "formula";
 
     @Inject
     private Provider<XWikiContext> xwikiContextProvider;
 
+    @Inject
+    private FormulaRendererConfiguration configuration;
+
     /**
      * @param imageId the identifier for the image, returned by
      *        {@link FormulaRenderer#process(String, boolean, FormulaRenderer.FontSize, FormulaRenderer.Type)}
@@ -66,6 +72,30 @@ public class TemporaryResourceReferenceProvider
         return getReference(imageId, "Type");
     }
 
+    /**
+     * @param imageId the identifier for the image, returned by
+     *        {@link FormulaRenderer#getImageId(String, boolean, FormulaRenderer.FontSize, FormulaRenderer.Type)}
+     * @return the Temporary Resource Reference pointing at the description of a formula that will be rendered when its
+     *         image is first requested
+     * @since 14.9
+     */
+    public TemporaryResourceReference getImageRequestReference(String imageId)
+    {
+        return getReference(imageId, "Request");
+    }
+
+    /**
+     * @param imageId the identifier for the image, returned by
+     *        {@link FormulaRenderer#process(String, boolean, FormulaRenderer.FontSize, FormulaRenderer.Type)}
+     * @return the Temporary Resource Reference pointing at the gzip compressed copy of a generated formula image
+     * @since 14.9
+     * @see FormulaRendererConfiguration#isSVGPrecompression()
+     */
+    public TemporaryResourceReference getCompressedImageReference(String imageId)
+    {
+        return getReference(imageId, ".gz");
+    }
+
     private TemporaryResourceReference getReference(String imageId, String suffix)
     {
         // TODO: Fix this by changing the ImageStorage interface and passing an EntityReference. FTM we don't change
@@ -73,8 +103,10 @@ public class TemporaryResourceReferenceProvider
         // classes for those using it when it was in platform (v <= 14.6).
         // Note: It's possible this won't work if the context is not set up correctly prior to calling ImageStorage.
         XWikiContext xcontext = this.xwikiContextProvider.get();
-        DocumentReference currentDocumentReference = xcontext.getDoc().getDocumentReference();
-        return new TemporaryResourceReference(MODULE_ID, String.format("%s%s", imageId, suffix),
-            currentDocumentReference);
+        // The image identifier only depends on the formula and its rendering parameters, so the images can be shared
+        // by all the documents of the wiki
+        EntityReference owningReference = this.configuration.isSharedStorage() ? xcontext.getWikiReference()
+            : xcontext.getDoc().getDocumentReference();
+        return new TemporaryResourceReference(MODULE_ID, String.format("%s%s", imageId, suffix), owningReference);
     }
 }
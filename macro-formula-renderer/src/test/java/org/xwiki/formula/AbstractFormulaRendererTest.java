@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.formula.FormulaRenderer.FontSize;
+import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link AbstractFormulaRenderer}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class AbstractFormulaRendererTest
+{
+    private static final ImageData IMAGE = new ImageData(new byte[] {1, 2, 3}, Type.PNG);
+
+    /**
+     * Renders the formulae with a fixed image, blocking until allowed to finish.
+     *
+     * @version $Id$
+     */
+    @Component
+    @Named("test")
+    @Singleton
+    public static class TestFormulaRenderer extends AbstractFormulaRenderer
+    {
+        private final AtomicInteger renderCount = new AtomicInteger();
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch finish = new CountDownLatch(1);
+
+        private volatile RuntimeException failure;
+
+        @Override
+        protected ImageData renderImage(String formula, boolean inline, FontSize size, Type type)
+            throws IllegalArgumentException, IOException
+        {
+            this.renderCount.incrementAndGet();
+            this.started.countDown();
+            try {
+                this.finish.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            return IMAGE;
+        }
+    }
+
+    @InjectMockComponents
+    private TestFormulaRenderer renderer;
+
+    @MockComponent
+    private ImageStorage storage;
+
+    @MockComponent
+    private FormulaRenderExecutor executor;
+
+    @MockComponent
+    private FormulaRendererConfiguration configuration;
+
+    private final ExecutorService threads = Executors.newFixedThreadPool(2);
+
+    /** The threads of the submitted renderings, by rendering. */
+    private final Map<Future<String>, Thread> renderingThreads = new ConcurrentHashMap<>();
+
+    @AfterEach
+    void tearDown()
+    {
+        this.renderer.finish.countDown();
+        this.threads.shutdownNow();
+    }
+
+    @Test
+    void getImageId()
+    {
+        String imageId = this.renderer.getImageId("a+b\r\nc", false, FontSize.NORMAL, Type.PNG);
+
+        // The line endings don't change the rendering
+        assertEquals(imageId, this.renderer.getImageId("a+b\nc", false, FontSize.NORMAL, Type.PNG));
+        assertNotEquals(imageId, this.renderer.getImageId("a+b\nc", true, FontSize.NORMAL, Type.PNG));
+        assertNotEquals(imageId, this.renderer.getImageId("a+b\nc", false, FontSize.LARGE, Type.PNG));
+        assertNotEquals(imageId, this.renderer.getImageId("a+b\nc", false, FontSize.NORMAL, Type.SVG));
+        assertTrue(imageId.matches("[0-9a-f]{64}"));
+    }
+
+    @Test
+    void processRendersConcurrentRequestsOnce() throws Exception
+    {
+        Future<String> first = submitProcess("a+b");
+        assertTrue(this.renderer.started.await(10, TimeUnit.SECONDS));
+        // The second request waits for the rendering of the first one
+        Future<String> second = submitProcess("a+b");
+        awaitWaiting(second);
+        this.renderer.finish.countDown();
+
+        String imageId = first.get(10, TimeUnit.SECONDS);
+        assertEquals(imageId, second.get(10, TimeUnit.SECONDS));
+        assertEquals(1, this.renderer.renderCount.get());
+        verify(this.storage).put(imageId, IMAGE);
+    }
+
+    @Test
+    void processReportsFailureToWaitingRequests() throws Exception
+    {
+        this.renderer.failure = new IllegalArgumentException("Invalid formula");
+        Future<String> first = submitProcess("a+");
+        assertTrue(this.renderer.started.await(10, TimeUnit.SECONDS));
+        Future<String> second = submitProcess("a+");
+        awaitWaiting(second);
+        this.renderer.finish.countDown();
+
+        Exception firstFailure = assertThrows(Exception.class, () -> first.get(10, TimeUnit.SECONDS));
+        assertTrue(firstFailure.getCause() instanceof IllegalArgumentException);
+        Exception secondFailure = assertThrows(Exception.class, () -> second.get(10, TimeUnit.SECONDS));
+        assertTrue(secondFailure.getCause() instanceof IllegalArgumentException);
+        assertEquals(1, this.renderer.renderCount.get());
+    }
+
+    @Test
+    void processWhenStored() throws Exception
+    {
+        String imageId = this.renderer.getImageId("a+b", false, FontSize.NORMAL, Type.PNG);
+        when(this.storage.exists(imageId)).thenReturn(true);
+
+        assertEquals(imageId, this.renderer.process("a+b", false, FontSize.NORMAL, Type.PNG));
+        assertEquals(0, this.renderer.renderCount.get());
+    }
+
+    @Test
+    void processAsync() throws Exception
+    {
+        CompletableFuture<String> rendering = new CompletableFuture<>();
+        when(this.executor.submit(any())).thenAnswer(invocation -> rendering);
+
+        assertSame(rendering, this.renderer.processAsync("a+b", false, FontSize.NORMAL, Type.PNG));
+    }
+
+    @Test
+    void processAsyncWhenStored() throws Exception
+    {
+        String imageId = this.renderer.getImageId("a+b", false, FontSize.NORMAL, Type.PNG);
+        when(this.storage.exists(imageId)).thenReturn(true);
+
+        // The rendering is not sent to another thread when the image is already available
+        CompletableFuture<String> rendering = this.renderer.processAsync("a+b", false, FontSize.NORMAL, Type.PNG);
+        assertEquals(imageId, rendering.getNow(null));
+        verify(this.executor, never()).submit(any());
+    }
+
+    private Future<String> submitProcess(String formula) throws InterruptedException
+    {
+        CompletableFuture<Thread> thread = new CompletableFuture<>();
+        Future<String> rendering = this.threads.submit(() -> {
+            thread.complete(Thread.currentThread());
+            return this.renderer.process(formula, false, FontSize.NORMAL, Type.PNG);
+        });
+        this.renderingThreads.put(rendering, thread.join());
+        return rendering;
+    }
+
+    /**
+     * Waits until a rendering is blocked, waiting for the rendering of another thread.
+     *
+     * @param rendering a rendering submitted with {@link #submitProcess(String)}
+     */
+    private void awaitWaiting(Future<String> rendering) throws InterruptedException
+    {
+        Thread thread = this.renderingThreads.get(rendering);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (thread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Only the first thread renders, so the second is waiting for it
+        assertEquals(1, this.renderer.renderCount.get());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.formula.FormulaRendererConfiguration;
+import org.xwiki.formula.ImageData;
+import org.xwiki.formula.ImageStorage;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CachingImageStorage}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class CachingImageStorageTest
+{
+    private static final String IMAGE_ID = "image";
+
+    private static final String CACHE_KEY = "Space/image";
+
+    private static final ImageData IMAGE = new ImageData(new byte[] {1, 2, 3}, Type.PNG);
+
+    @InjectMockComponents
+    private CachingImageStorage storage;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @MockComponent
+    private FormulaRendererConfiguration configuration;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    private TemporaryResourceReferenceProvider resourceReferenceProvider;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> entityReferenceSerializer;
+
+    private ImageStorage persistentStorage;
+
+    private Cache<ImageData> cache;
+
+    @BeforeComponent
+    void configure() throws Exception
+    {
+        when(this.configuration.getStorage()).thenReturn("temporary");
+        when(this.configuration.getCacheMaxEntries()).thenReturn(100);
+        when(this.configuration.getCacheMaxEntrySize()).thenReturn(1024);
+        this.persistentStorage = this.componentManager.registerMockComponent(ImageStorage.class, "temporary");
+        this.cache = mock(Cache.class);
+        when(this.cacheManager.<ImageData>createNewCache(any())).thenReturn(this.cache);
+    }
+
+    @BeforeEach
+    void setUp()
+    {
+        TemporaryResourceReference reference = mock(TemporaryResourceReference.class);
+        EntityReference owningReference = mock(EntityReference.class);
+        when(reference.getOwningEntityReference()).thenReturn(owningReference);
+        when(this.resourceReferenceProvider.getImageReference(IMAGE_ID)).thenReturn(reference);
+        when(this.entityReferenceSerializer.serialize(owningReference)).thenReturn("Space");
+    }
+
+    @Test
+    void initializeWithEntryCount() throws Exception
+    {
+        ArgumentCaptor<LRUCacheConfiguration> configurationCaptor =
+            ArgumentCaptor.forClass(LRUCacheConfiguration.class);
+        verify(this.cacheManager).createNewCache(configurationCaptor.capture());
+
+        assertEquals(100, configurationCaptor.getValue().getLRUEvictionConfiguration().getMaxEntries());
+    }
+
+    @Test
+    void existsWhenCached()
+    {
+        when(this.cache.get(CACHE_KEY)).thenReturn(IMAGE);
+
+        assertTrue(this.storage.exists(IMAGE_ID));
+        // The image in memory is trusted, without accessing the disk
+        verify(this.persistentStorage, never()).exists(any());
+        assertEquals(1, this.storage.getHitCount());
+    }
+
+    @Test
+    void getWhenNotCached()
+    {
+        when(this.persistentStorage.get(IMAGE_ID)).thenReturn(IMAGE);
+
+        assertSame(IMAGE, this.storage.get(IMAGE_ID));
+        verify(this.cache).set(CACHE_KEY, IMAGE);
+        assertEquals(1, this.storage.getMissCount());
+    }
+
+    @Test
+    void getWhenMissing()
+    {
+        assertNull(this.storage.get(IMAGE_ID));
+        verify(this.cache).remove(CACHE_KEY);
+        verify(this.cache, never()).set(any(), any());
+    }
+
+    @Test
+    void putDoesntCacheBigImages()
+    {
+        ImageData bigImage = new ImageData(new byte[2048], Type.PNG);
+
+        this.storage.put(IMAGE_ID, bigImage);
+
+        verify(this.persistentStorage).put(IMAGE_ID, bigImage);
+        verify(this.cache, never()).set(any(), any());
+    }
+}
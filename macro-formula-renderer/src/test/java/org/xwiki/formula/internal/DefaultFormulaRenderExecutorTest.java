@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.formula.FormulaRendererConfiguration;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DefaultFormulaRenderExecutor}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultFormulaRenderExecutorTest
+{
+    @InjectMockComponents
+    private DefaultFormulaRenderExecutor renderExecutor;
+
+    @MockComponent
+    private FormulaRendererConfiguration configuration;
+
+    @MockComponent
+    private Execution execution;
+
+    @MockComponent
+    private ExecutionContextManager executionContextManager;
+
+    private final ExecutionContext context = new ExecutionContext();
+
+    private final ExecutionContext clonedContext = new ExecutionContext();
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configuration.getRenderThreads()).thenReturn(2);
+        when(this.configuration.getRenderQueueSize()).thenReturn(10);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.execution.getContext()).thenReturn(this.context);
+        when(this.executionContextManager.clone(this.context)).thenReturn(this.clonedContext);
+    }
+
+    @Test
+    void submit() throws Exception
+    {
+        CompletableFuture<Thread> result = this.renderExecutor.submit(Thread::currentThread);
+
+        // The task runs in another thread, in a clone of the execution context of the requesting thread
+        assertNotEquals(Thread.currentThread(), result.get(10, TimeUnit.SECONDS));
+        verify(this.execution).pushContext(this.clonedContext, false);
+        verify(this.execution, timeout(10000)).popContext();
+    }
+
+    @Test
+    void submitFailingTask()
+    {
+        IllegalArgumentException failure = new IllegalArgumentException("Invalid formula");
+        CompletableFuture<String> result = this.renderExecutor.submit(() -> {
+            throw failure;
+        });
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+        assertSame(failure, exception.getCause());
+    }
+
+    @Test
+    void submitAfterDispose()
+    {
+        this.renderExecutor.dispose();
+
+        CompletableFuture<String> result = this.renderExecutor.submit(() -> "result");
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+        assertEquals(RejectedExecutionException.class, exception.getCause().getClass());
+    }
+}
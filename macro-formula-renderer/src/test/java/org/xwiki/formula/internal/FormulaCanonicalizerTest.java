@@ -0,0 +1,130 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link FormulaCanonicalizer}.
+ *
+ * @version $Id$
+ */
+class FormulaCanonicalizerTest
+{
+    @Test
+    void removeMathWhitespace()
+    {
+        assertEquals("a+b", FormulaCanonicalizer.canonicalize("a + b", false));
+        assertEquals("a+b", FormulaCanonicalizer.canonicalize(" a\t+\n b ", false));
+        assertEquals("\\frac{a}{b}", FormulaCanonicalizer.canonicalize("\\frac {a} { b }", false));
+        assertEquals("\\sqrt[3]{x}", FormulaCanonicalizer.canonicalize("\\sqrt [3] {x}", false));
+    }
+
+    @Test
+    void keepSignificantWhitespace()
+    {
+        // A space ends the control word before a letter
+        assertEquals("\\alpha b", FormulaCanonicalizer.canonicalize("\\alpha   b", false));
+        assertEquals("\\alpha+b", FormulaCanonicalizer.canonicalize("\\alpha + b", false));
+        // Between words and numbers
+        assertEquals("1 2", FormulaCanonicalizer.canonicalize("1  2", false));
+        // An empty line is an error that must be kept
+        assertEquals("a\n\nb", FormulaCanonicalizer.canonicalize("a \n \n b", false));
+        // Optional argument of a control symbol
+        assertEquals("\\begin{matrix}a\\\\ [2pt]b\\end{matrix}",
+            FormulaCanonicalizer.canonicalize("\\begin{matrix} a \\\\ [2pt] b \\end{matrix}", false));
+    }
+
+    @Test
+    void collapseTextWhitespace()
+    {
+        assertEquals("x\\text{if a b}", FormulaCanonicalizer.canonicalize("x \\text{if  a\n b}", false));
+        assertEquals("\\text{ a }", FormulaCanonicalizer.canonicalize("\\text{ a }", false));
+        assertEquals("\\mbox{a b}+c", FormulaCanonicalizer.canonicalize("\\mbox{a   b} + c", false));
+    }
+
+    @Test
+    void keepUnknownCommands()
+    {
+        // Text mode boxes that are not known keep all their whitespace
+        assertNotEquals(FormulaCanonicalizer.canonicalize("\\colorbox{red}{a + b}", false),
+            FormulaCanonicalizer.canonicalize("\\colorbox{red}{a+b}", false));
+        assertEquals("\\colorbox{red}{a + b}", FormulaCanonicalizer.canonicalize("\\colorbox{red}{a + b}", false));
+        assertEquals("\\fcolorbox{red}{blue}{a + b}",
+            FormulaCanonicalizer.canonicalize("\\fcolorbox{red}{blue}{a + b}", false));
+        assertEquals("x + \\rlap{a b} + \\llap{c}",
+            FormulaCanonicalizer.canonicalize("x + \\rlap{a b} + \\llap{c}", false));
+        assertEquals("\\hbox to 3em{a b}", FormulaCanonicalizer.canonicalize("\\hbox to 3em{a b}", false));
+        assertEquals("\\color{red} a + b", FormulaCanonicalizer.canonicalize("\\color{red} a + b", false));
+        // Definitions, verbatim and text mode
+        assertEquals("\\def\\x {a b} \\x", FormulaCanonicalizer.canonicalize("\\def\\x {a b} \\x", false));
+        assertEquals("\\verb| a |", FormulaCanonicalizer.canonicalize("\\verb| a |", false));
+        assertEquals("\\text{$a + b$}", FormulaCanonicalizer.canonicalize("\\text{$a + b$}", false));
+        assertEquals("^^5cgdef a b", FormulaCanonicalizer.canonicalize("^^5cgdef a b", false));
+        // Only the line endings are normalized
+        assertEquals("\\foo{a\n b}", FormulaCanonicalizer.canonicalize("\\foo{a\r\n b}", false));
+    }
+
+    @Test
+    void checkEnvironments()
+    {
+        assertEquals("\\begin{pmatrix}a&b\\end{pmatrix}",
+            FormulaCanonicalizer.canonicalize("\\begin{pmatrix} a & b \\end{pmatrix}", false));
+        assertEquals("\\begin{minipage}{1in} a b\\end{minipage}",
+            FormulaCanonicalizer.canonicalize("\\begin{minipage}{1in} a b\\end{minipage}", false));
+        assertEquals("\\begin{ matrix}a \\end{ matrix}",
+            FormulaCanonicalizer.canonicalize("\\begin{ matrix}a \\end{ matrix}", false));
+    }
+
+    @Test
+    void stripBraces()
+    {
+        assertEquals("a+b", FormulaCanonicalizer.canonicalize("{ a + b }", true));
+        assertEquals("a+b", FormulaCanonicalizer.canonicalize("{{a+b}}", true));
+        assertEquals("{a+b}", FormulaCanonicalizer.canonicalize("{a+b}", false));
+        assertEquals("{a}+{b}", FormulaCanonicalizer.canonicalize("{a} + {b}", true));
+        assertEquals("{\\}", FormulaCanonicalizer.canonicalize("{\\}", true));
+        assertEquals("{a%}\n}", FormulaCanonicalizer.canonicalize("{a %}\n}", true));
+    }
+
+    @Test
+    void isSelfContained()
+    {
+        assertTrue(FormulaCanonicalizer.isSelfContained("\\frac{a}{b} + \\sqrt{c}"));
+        assertTrue(FormulaCanonicalizer.isSelfContained("\\begin{matrix} a \\\\ b \\end{matrix} \\{ x \\}"));
+        assertTrue(FormulaCanonicalizer.isSelfContained("\\text{a b}"));
+
+        assertFalse(FormulaCanonicalizer.isSelfContained("\\end{displaymath}\\clearpage\\begin{displaymath}"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("\\gdef\\x{1} \\x"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("\\global\\let\\alpha\\beta"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("^^5cgdef^^5cx{1}"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("a } { b"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("{a"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("\\begin{matrix} a \\end{pmatrix}"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("\\begin{matrix} a"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("a % }"));
+        assertFalse(FormulaCanonicalizer.isSelfContained("\\label{x} a"));
+    }
+}
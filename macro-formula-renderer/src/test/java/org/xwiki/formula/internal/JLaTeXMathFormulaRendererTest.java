@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.formula.FormulaRenderExecutor;
+import org.xwiki.formula.FormulaRenderer.FontSize;
+import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.formula.FormulaRendererConfiguration;
+import org.xwiki.formula.FormulaRequest;
+import org.xwiki.formula.ImageData;
+import org.xwiki.formula.ImageStorage;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for {@link JLaTeXMathFormulaRenderer}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class JLaTeXMathFormulaRendererTest
+{
+    /** The signature starting all the PNG files. */
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    @InjectMockComponents
+    private JLaTeXMathFormulaRenderer renderer;
+
+    @MockComponent
+    private ImageStorage storage;
+
+    @MockComponent
+    private FormulaRenderExecutor executor;
+
+    @MockComponent
+    private FormulaRendererConfiguration configuration;
+
+    @Test
+    void renderImage() throws Exception
+    {
+        ImageData image =
+            this.renderer.renderImage(new FormulaRequest("\\frac{a}{b}+\\sqrt{x}", false, FontSize.NORMAL, Type.PNG));
+
+        assertEquals(Type.PNG, image.getType());
+        assertEquals("image/png", image.getMimeType());
+        assertArrayEquals(PNG_SIGNATURE, Arrays.copyOf(image.getData(), PNG_SIGNATURE.length));
+    }
+
+    @Test
+    void renderImageWithUnsupportedType()
+    {
+        assertThrows(IllegalArgumentException.class,
+            () -> this.renderer.renderImage(new FormulaRequest("a+b", false, FontSize.NORMAL, Type.SVG)));
+    }
+
+    @Test
+    void renderInvalidFormula()
+    {
+        assertThrows(IllegalArgumentException.class,
+            () -> this.renderer.renderImage(new FormulaRequest("\\undefined", false, FontSize.NORMAL, Type.PNG)));
+    }
+}
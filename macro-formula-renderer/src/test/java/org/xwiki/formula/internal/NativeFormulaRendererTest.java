@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.environment.Environment;
+import org.xwiki.formula.FormulaRenderer.FontSize;
+import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.formula.FormulaRequest;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link NativeFormulaRenderer}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class NativeFormulaRendererTest
+{
+    private static final File WORK_DIRECTORY = new File("target/test-" + NativeFormulaRendererTest.class.getName());
+
+    @InjectMockComponents
+    private NativeFormulaRenderer renderer;
+
+    @MockComponent
+    private Environment environment;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.environment.getTemporaryDirectory()).thenReturn(WORK_DIRECTORY);
+    }
+
+    @Test
+    void renderImagesWithoutSelfContainedFormulae() throws Exception
+    {
+        // The formulae that could affect the other pages of the batch are rendered alone
+        Map<String, FormulaRequest> requests = new LinkedHashMap<>();
+        requests.put("shift", new FormulaRequest("a\\end{displaymath}\\clearpage\\begin{displaymath}b", false,
+            FontSize.NORMAL, Type.PNG));
+        requests.put("define", new FormulaRequest("\\gdef\\alpha{x}", false, FontSize.NORMAL, Type.PNG));
+        requests.put("valid", new FormulaRequest("a+b", false, FontSize.NORMAL, Type.PNG));
+
+        assertTrue(this.renderer.renderImages(requests).isEmpty());
+    }
+
+    @Test
+    void initializeRemovesOnlyStaleDirectories() throws Exception
+    {
+        File formulae = new File(WORK_DIRECTORY, "formulae");
+        // Left by an instance that was not disposed
+        File stale = new File(formulae, "instance-stale");
+        FileUtils.writeByteArrayToFile(new File(stale, ".lock"), new byte[0]);
+        // Used by another instance
+        File live = new File(formulae, "instance-live");
+        FileUtils.writeByteArrayToFile(new File(live, ".lock"), new byte[0]);
+        Set<File> before = new HashSet<>(Arrays.asList(formulae.listFiles()));
+        try (FileChannel channel = FileChannel.open(new File(live, ".lock").toPath(), StandardOpenOption.WRITE);
+            FileLock lock = channel.lock()) {
+            this.renderer.dispose();
+            this.renderer.initialize();
+
+            assertFalse(stale.exists());
+            assertTrue(live.exists());
+            Set<File> created = new HashSet<>(Arrays.asList(formulae.listFiles()));
+            created.removeAll(before);
+            assertEquals(1, created.size());
+            File instance = created.iterator().next();
+            assertTrue(instance.getName().startsWith("instance-"));
+
+            // The directory of the instance is removed when the instance is disposed
+            this.renderer.dispose();
+            assertFalse(instance.exists());
+            assertTrue(live.exists());
+        } finally {
+            FileUtils.deleteDirectory(live);
+        }
+    }
+
+    @Test
+    void getPageCount() throws Exception
+    {
+        assertEquals(3, NativeFormulaRenderer.getPageCount(writeDVI(3, 4)));
+        assertEquals(1, NativeFormulaRenderer.getPageCount(writeDVI(1, 7)));
+    }
+
+    @Test
+    void getPageCountOfInvalidFile() throws Exception
+    {
+        File file = new File(WORK_DIRECTORY, "invalid.dvi");
+        FileUtils.writeByteArrayToFile(file, new byte[] {2, 1, 2, 3, (byte) 223, (byte) 223, (byte) 223});
+
+        assertThrows(IOException.class, () -> NativeFormulaRenderer.getPageCount(file));
+    }
+
+    private File writeDVI(int pageCount, int padding) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dvi = new DataOutputStream(bytes);
+        // Preamble and pages, not read
+        dvi.write(new byte[] {(byte) 247, 2, 0, 0, 0, 0});
+        int postamble = dvi.size();
+        // post p[4] num[4] den[4] mag[4] l[4] u[4] s[2] t[2]
+        dvi.writeByte(248);
+        for (int i = 0; i < 6; i++) {
+            dvi.writeInt(i);
+        }
+        dvi.writeShort(10);
+        dvi.writeShort(pageCount);
+        // post_post q[4] i[1] 223's
+        dvi.writeByte(249);
+        dvi.writeInt(postamble);
+        dvi.writeByte(2);
+        for (int i = 0; i < padding; i++) {
+            dvi.writeByte(223);
+        }
+
+        File file = new File(WORK_DIRECTORY, pageCount + ".dvi");
+        FileUtils.writeByteArrayToFile(file, bytes.toByteArray());
+        return file;
+    }
+}
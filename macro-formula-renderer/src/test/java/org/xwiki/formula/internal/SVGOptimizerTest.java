@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for {@link SVGOptimizer}.
+ *
+ * @version $Id$
+ */
+class SVGOptimizerTest
+{
+    @Test
+    void optimize() throws Exception
+    {
+        // The elements have a single attribute since their order is not preserved
+        String svg = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<!-- This file was generated by dvisvgm -->\n"
+            + "<svg xmlns='http://www.w3.org/2000/svg' xmlns:xlink='http://www.w3.org/1999/xlink' "
+            + "viewBox='56.4133 -60.3213 23.2011 8.4682'>\n"
+            + "<metadata><rdf>generator</rdf></metadata>\n"
+            + "<defs>\n"
+            + "<path d='M 3.4869 -1.10535 C 3.4869 -0.09 2.50 0.0 -0.0004 1.5E-3 Z'/>\n"
+            + "</defs>\n"
+            + "<g>\n"
+            + "<use xlink:href='#g0-97'>\n</use>\n"
+            + "<rect y='-52.8533'/>\n"
+            + "<text x='60.12345'> a  b </text>\n"
+            + "</g>\n"
+            + "</svg>";
+
+        assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+            + "viewBox=\"56.413 -60.321 23.201 8.468\"><defs><path d=\"M3.487-1.105C3.487-.09 2.5 0 0 .002Z\"/></defs>"
+            + "<g><use xlink:href=\"#g0-97\"/><rect y=\"-52.853\"/><text x=\"60.123\"> a  b </text></g></svg>",
+            optimize(svg, 3));
+    }
+
+    @Test
+    void optimizeWithoutDecimals() throws Exception
+    {
+        assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"24pt\"><rect x=\"-1\"/><rect height=\"0\"/>"
+            + "</svg>", optimize("<svg xmlns='http://www.w3.org/2000/svg' width='23.5pt'><rect x='-0.5'/>"
+            + "<rect height='0.4'/></svg>", 0));
+    }
+
+    @Test
+    void optimizeInvalidImage()
+    {
+        assertThrows(IOException.class, () -> optimize("<svg xmlns='http://www.w3.org/2000/svg'><g></svg>", 3));
+    }
+
+    private String optimize(String svg, int precision) throws IOException
+    {
+        return new String(SVGOptimizer.optimize(svg.getBytes(StandardCharsets.UTF_8), precision),
+            StandardCharsets.UTF_8);
+    }
+}
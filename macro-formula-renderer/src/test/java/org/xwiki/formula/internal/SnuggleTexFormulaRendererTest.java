@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.formula.internal;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.formula.FormulaRenderExecutor;
+import org.xwiki.formula.FormulaRenderer.FontSize;
+import org.xwiki.formula.FormulaRenderer.Type;
+import org.xwiki.formula.FormulaRendererConfiguration;
+import org.xwiki.formula.FormulaRequest;
+import org.xwiki.formula.ImageStorage;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link SnuggleTexFormulaRenderer}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class SnuggleTexFormulaRendererTest
+{
+    @InjectMockComponents
+    private SnuggleTexFormulaRenderer renderer;
+
+    @MockComponent
+    private ImageStorage storage;
+
+    @MockComponent
+    private FormulaRenderExecutor executor;
+
+    @MockComponent
+    private FormulaRendererConfiguration configuration;
+
+    @Test
+    void renderMathML() throws Exception
+    {
+        String mathML = renderMathML("x^2");
+
+        assertTrue(mathML.startsWith("<math"));
+        assertTrue(mathML.contains("<msup>"));
+    }
+
+    @Test
+    void renderMathMLReusingSession() throws Exception
+    {
+        // The session of the thread is reused, so the formulae and errors of the previous renderings must not leak
+        assertThrows(IllegalArgumentException.class, () -> renderMathML("\\frac{a"));
+        String first = renderMathML("y+1");
+        String second = renderMathML("z-2");
+
+        assertTrue(first.contains(">y<"));
+        assertTrue(second.contains(">z<"));
+        assertEquals("<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>z</mi><mo>-</mo><mn>2</mn></math>",
+            second);
+    }
+
+    private String renderMathML(String formula) throws Exception
+    {
+        return new String(
+            this.renderer.renderImage(new FormulaRequest(formula, true, FontSize.NORMAL, Type.MATHML)).getData(),
+            "UTF-8");
+    }
+}